@@ -85,8 +85,16 @@ function ChatInterface({ sessionId, isLoading }) {
 
   const loadChatHistory = async () => {
     try {
-      const response = await axios.get(`${API_BASE_URL}/chat/history/${sessionId}`);
-      setMessages(response.data.map(msg => ({
+      const history = [];
+      let cursor = null;
+      do {
+        const response = await axios.get(`${API_BASE_URL}/chat/history/${sessionId}/page`, {
+          params: { limit: 100, cursor }
+        });
+        history.push(...response.data.messages);
+        cursor = response.data.nextCursor;
+      } while (cursor);
+      setMessages(history.map(msg => ({
         id: msg.id,
         text: msg.message,
         response: msg.response,
@@ -126,6 +134,17 @@ function ChatInterface({ sessionId, isLoading }) {
         })
       });
 
+      if (response.status === 503) {
+        const retryAfter = response.headers.get('Retry-After') || 'a few';
+        setMessages(prev => prev.map(msg =>
+          msg.id === tempUserMsg.id
+            ? { ...msg, response: `The assistant is busy right now, please try again in ${retryAfter} seconds.` }
+            : msg
+        ));
+        setSending(false);
+        return;
+      }
+
       if (!response.ok) {
         throw new Error('Failed to get streaming response');
       }
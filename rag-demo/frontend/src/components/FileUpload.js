@@ -3,6 +3,9 @@ import axios from 'axios';
 import './FileUpload.css';
 
 const API_BASE_URL = process.env.REACT_APP_API_URL || 'http://localhost:8080/api';
+const JOB_POLL_INTERVAL_MS = 1000;
+
+const sleep = (ms) => new Promise((resolve) => setTimeout(resolve, ms));
 
 function FileUpload({ onUploadStart, onUploadComplete }) {
   const [file, setFile] = useState(null);
@@ -22,6 +25,20 @@ function FileUpload({ onUploadStart, onUploadComplete }) {
     }
   };
 
+  const waitForJob = async (jobId) => {
+    for (;;) {
+      const { data: job } = await axios.get(`${API_BASE_URL}/upload/jobs/${jobId}`);
+      if (job.status === 'COMPLETED' || job.status === 'FAILED') {
+        return job;
+      }
+      setMessage(job.status === 'QUEUED'
+        ? 'Waiting to be processed...'
+        : `Processing... ${job.segmentsDone}/${job.segmentsTotal} segments`);
+      setMessageType('info');
+      await sleep(JOB_POLL_INTERVAL_MS);
+    }
+  };
+
   const handleUpload = async () => {
     if (!file) {
       setMessage('Please select a file first');
@@ -43,12 +60,17 @@ function FileUpload({ onUploadStart, onUploadComplete }) {
         },
       });
 
-      setMessage(response.data.message || 'PDF uploaded and processed successfully!');
+      const job = await waitForJob(response.data.jobId);
+      if (job.status === 'FAILED') {
+        throw new Error(job.error || 'Failed to process PDF');
+      }
+
+      setMessage(`PDF processed successfully! (${job.segmentsDone} segments)`);
       setMessageType('success');
       setFile(null);
       document.getElementById('file-input').value = '';
     } catch (error) {
-      setMessage(error.response?.data?.error || 'Failed to upload PDF');
+      setMessage(error.response?.data?.error || error.message || 'Failed to upload PDF');
       setMessageType('error');
     } finally {
       setUploading(false);
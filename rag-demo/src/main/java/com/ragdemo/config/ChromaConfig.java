@@ -1,10 +1,19 @@
 package com.ragdemo.config;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ragdemo.repository.SegmentEmbeddingRepository;
+import com.ragdemo.service.ActiveIndex;
+import com.ragdemo.service.CollectionRegistry;
+import com.ragdemo.vectorstore.DefaultCollectionState;
+import com.ragdemo.vectorstore.DefaultCollectionState.Outcome;
+import com.ragdemo.vectorstore.EmbeddingStoreFactory;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import dev.langchain4j.store.embedding.chroma.ChromaEmbeddingStore;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -13,8 +22,18 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Connects to Chroma and keeps the default collection across restarts. At
+ * startup the collection is compared with the segment index: it is kept when its
+ * vectors have the current model's dimension and it holds at least what the
+ * index records as stored, and recreated otherwise. A missing or recreated
+ * collection is filled again from the index in the background.
+ */
 @Configuration
 @Slf4j
 public class ChromaConfig {
@@ -25,87 +44,172 @@ public class ChromaConfig {
     @Value("${chroma.collection-name:rag-documents}")
     private String collectionName;
 
+    @Value("${chroma.startup.initial-backoff-ms:100}")
+    private long initialBackoffMs;
+
+    @Value("${chroma.startup.max-backoff-ms:2000}")
+    private long maxBackoffMs;
+
+    @Value("${chroma.startup.timeout-seconds:60}")
+    private long startupTimeoutSeconds;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
+
     @Bean
-    public EmbeddingStore<TextSegment> embeddingStore() {
-        log.info("Initializing Chroma embedding store at: {}", chromaBaseUrl);
-        
-        // Retry logic to handle Chroma startup timing
-        int maxRetries = 10;
-        int retryDelaySeconds = 3;
-        
-        for (int attempt = 1; attempt <= maxRetries; attempt++) {
-            try {
-                // Try to delete existing collection if it exists (to handle dimension mismatches)
-                // This will fail silently if collection doesn't exist, which is fine
-                try {
-                    deleteCollectionIfExists();
-                } catch (Exception e) {
-                    log.debug("Could not delete collection (may not exist): {}", e.getMessage());
-                }
-                
-                EmbeddingStore<TextSegment> store = ChromaEmbeddingStore.builder()
+    @ConditionalOnProperty(name = "vector-store.type", havingValue = "chroma", matchIfMissing = true)
+    public DefaultCollectionState defaultCollectionState(SegmentEmbeddingRepository segmentEmbeddingRepository,
+                                                         ObjectMapper objectMapper,
+                                                         ActiveIndex activeIndex) {
+        // The collection of the generation in use, built with its model
+        String collectionName = defaultPhysicalName(activeIndex);
+        String embeddingModelName = activeIndex.modelName();
+        log.info("Checking Chroma collection {} at: {}", collectionName, chromaBaseUrl);
+        long start = System.nanoTime();
+        withBackoff("Chroma heartbeat", () -> send(HttpRequest.newBuilder(uri("/api/v1/heartbeat")).GET(), 200));
+
+        DefaultCollectionState state = withBackoff("Inspecting Chroma collection", () -> {
+            Optional<String> collectionId = findCollectionId(objectMapper, collectionName);
+            long markers = segmentEmbeddingRepository.countByModelNameAndEmbeddingIdIsNotNull(embeddingModelName);
+            if (collectionId.isEmpty()) {
+                return new DefaultCollectionState(Outcome.MISSING, "collection does not exist");
+            }
+            long count = Long.parseLong(send(HttpRequest.newBuilder(
+                    uri("/api/v1/collections/" + collectionId.get() + "/count")).GET(), 200).trim());
+            if (count == 0) {
+                return new DefaultCollectionState(markers == 0 ? Outcome.KEPT : Outcome.MISSING, "collection is empty");
+            }
+            if (markers == 0) {
+                return recreate(collectionName, "holds " + count + " vectors the segment index does not know");
+            }
+            int storedDimension = sampleDimension(objectMapper, collectionId.get());
+            int expectedDimension = segmentEmbeddingRepository
+                    .findFirstByModelNameAndEmbeddingIdIsNotNull(embeddingModelName)
+                    .map(entry -> entry.getVector().length / Float.BYTES)
+                    .orElse(storedDimension);
+            if (storedDimension != expectedDimension) {
+                return recreate(collectionName, "has dimension " + storedDimension + " instead of " + expectedDimension);
+            }
+            if (count < markers) {
+                return recreate(collectionName, "holds " + count + " of " + markers + " indexed vectors");
+            }
+            return new DefaultCollectionState(Outcome.KEPT, count + " vectors of dimension " + storedDimension);
+        });
+        log.info("Chroma collection {}: {} ({}) in {} ms", collectionName, state.outcome(), state.reason(),
+                (System.nanoTime() - start) / 1_000_000);
+        return state;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "vector-store.type", havingValue = "chroma", matchIfMissing = true)
+    public EmbeddingStore<TextSegment> embeddingStore(DefaultCollectionState defaultCollectionState,
+                                                      ActiveIndex activeIndex) {
+        String collectionName = defaultPhysicalName(activeIndex);
+        // Opened after the state check, so this gets the kept collection or creates a new one
+        EmbeddingStore<TextSegment> store = withBackoff("Opening Chroma collection", () ->
+                ChromaEmbeddingStore.builder()
                         .baseUrl(chromaBaseUrl)
                         .collectionName(collectionName)
-                        .build();
-                log.info("Successfully connected to Chroma embedding store with collection: {}", collectionName);
-                return store;
+                        .build());
+        log.info("Successfully connected to Chroma embedding store with collection: {}", collectionName);
+        return store;
+    }
+
+    /**
+     * Opens further collections for {@code rag.collections}. Unlike the default
+     * collection they are not checked at startup.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "vector-store.type", havingValue = "chroma", matchIfMissing = true)
+    public EmbeddingStoreFactory chromaStoreFactory() {
+        return name -> ChromaEmbeddingStore.builder()
+                .baseUrl(chromaBaseUrl)
+                .collectionName(name)
+                .build();
+    }
+
+    private String defaultPhysicalName(ActiveIndex activeIndex) {
+        return CollectionRegistry.physicalName(collectionName, activeIndex.current().number());
+    }
+
+    private Optional<String> findCollectionId(ObjectMapper objectMapper, String collectionName)
+            throws IOException, InterruptedException {
+        HttpResponse<String> response = httpClient.send(
+                HttpRequest.newBuilder(uri("/api/v1/collections/" + collectionName))
+                        .timeout(Duration.ofSeconds(5)).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() == 200) {
+            return Optional.of(objectMapper.readTree(response.body()).path("id").asText());
+        }
+        // Chroma 0.4 answers a missing collection with a 500 naming the error
+        if (response.statusCode() == 404 || response.body().contains("does not exist")) {
+            return Optional.empty();
+        }
+        throw new IOException("Unexpected status " + response.statusCode() + " for collection " + collectionName);
+    }
+
+    private int sampleDimension(ObjectMapper objectMapper, String collectionId) throws IOException, InterruptedException {
+        String body = send(HttpRequest.newBuilder(uri("/api/v1/collections/" + collectionId + "/get"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"limit\":1,\"include\":[\"embeddings\"]}")), 200);
+        return objectMapper.readTree(body).path("embeddings").path(0).size();
+    }
+
+    private DefaultCollectionState recreate(String collectionName, String reason)
+            throws IOException, InterruptedException {
+        log.warn("Chroma collection {} {}, deleting it", collectionName, reason);
+        HttpResponse<String> response = httpClient.send(
+                HttpRequest.newBuilder(uri("/api/v1/collections/" + collectionName))
+                        .timeout(Duration.ofSeconds(30)).DELETE().build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Unexpected status " + response.statusCode() + " deleting collection " + collectionName);
+        }
+        return new DefaultCollectionState(Outcome.RECREATED, reason);
+    }
+
+    private String send(HttpRequest.Builder request, int expectedStatus) throws IOException, InterruptedException {
+        HttpResponse<String> response = httpClient.send(request.timeout(Duration.ofSeconds(5)).build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != expectedStatus) {
+            throw new IOException("Unexpected status " + response.statusCode() + " from " + request.build().uri());
+        }
+        return response.body();
+    }
+
+    private URI uri(String path) {
+        return URI.create(chromaBaseUrl + path);
+    }
+
+    /**
+     * Runs {@code action} until it succeeds, waiting exponentially longer between
+     * attempts, up to {@code chroma.startup.timeout-seconds} in total.
+     */
+    private <T> T withBackoff(String action, Callable<T> call) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(startupTimeoutSeconds);
+        long delayMs = initialBackoffMs;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
             } catch (Exception e) {
-                // Check if error is due to dimension mismatch
-                if (e.getMessage() != null && e.getMessage().contains("dimension")) {
-                    log.warn("Dimension mismatch detected. Attempting to delete and recreate collection...");
-                    try {
-                        deleteCollectionIfExists();
-                        // Retry creating the store after deletion
-                        EmbeddingStore<TextSegment> store = ChromaEmbeddingStore.builder()
-                                .baseUrl(chromaBaseUrl)
-                                .collectionName(collectionName)
-                                .build();
-                        log.info("Successfully recreated Chroma collection with correct dimensions");
-                        return store;
-                    } catch (Exception retryException) {
-                        log.error("Failed to recreate collection after dimension mismatch", retryException);
-                        throw new RuntimeException("Failed to initialize Chroma embedding store due to dimension mismatch. " +
-                                "Please delete the Chroma volume or collection manually.", retryException);
-                    }
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for Chroma", e);
                 }
-                
-                if (attempt < maxRetries) {
-                    log.warn("Failed to connect to Chroma (attempt {}/{}). Retrying in {} seconds...", 
-                            attempt, maxRetries, retryDelaySeconds);
-                    try {
-                        TimeUnit.SECONDS.sleep(retryDelaySeconds);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new RuntimeException("Interrupted while waiting for Chroma", ie);
-                    }
-                } else {
-                    log.error("Failed to connect to Chroma after {} attempts", maxRetries);
-                    throw new RuntimeException("Failed to initialize Chroma embedding store after " + 
-                            maxRetries + " attempts. Make sure Chroma is running and accessible at: " + 
-                            chromaBaseUrl, e);
+                if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs) > deadline) {
+                    throw new IllegalStateException(action + " failed after " + attempt + " attempts. " +
+                            "Make sure Chroma is running and accessible at: " + chromaBaseUrl, e);
                 }
+                log.info("{} failed (attempt {}), retrying in {} ms: {}", action, attempt, delayMs, e.toString());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delayMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for Chroma", ie);
+                }
+                delayMs = Math.min(delayMs * 2, maxBackoffMs);
             }
         }
-        
-        throw new RuntimeException("Failed to initialize Chroma embedding store");
-    }
-    
-    private void deleteCollectionIfExists() throws IOException, InterruptedException {
-        HttpClient client = HttpClient.newHttpClient();
-        String deleteUrl = chromaBaseUrl + "/api/v1/collections/" + collectionName;
-        
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(deleteUrl))
-                .DELETE()
-                .build();
-        
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-        
-        if (response.statusCode() == 200 || response.statusCode() == 404) {
-            log.info("Collection '{}' deleted or does not exist", collectionName);
-        } else {
-            log.warn("Unexpected status code when deleting collection: {}", response.statusCode());
-        }
     }
 }
-
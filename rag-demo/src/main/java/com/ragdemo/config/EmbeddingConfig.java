@@ -0,0 +1,79 @@
+package com.ragdemo.config;
+
+import com.ragdemo.service.EmbeddingModelFactory;
+import com.ragdemo.service.InProcessEmbeddingEngine;
+import com.ragdemo.service.OllamaScheduler;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Picks the engine for an embedding model: the in-process one for
+ * {@link InProcessEmbeddingEngine#MODEL_NAME} when {@code embedding.engine=onnx},
+ * Ollama for everything else, admitted by the {@link OllamaScheduler}. Both are
+ * timed the same way, so their throughput can be compared on {@code rag.embedding.*}.
+ */
+@Configuration
+public class EmbeddingConfig {
+
+    @Bean
+    @Primary
+    public EmbeddingModelFactory embeddingModelFactory(
+            @Qualifier("ollamaEmbeddingModelFactory") EmbeddingModelFactory ollamaEmbeddingModelFactory,
+            Optional<InProcessEmbeddingEngine> inProcessEngine,
+            OllamaScheduler ollamaScheduler,
+            MeterRegistry meterRegistry) {
+        return modelName -> {
+            if (inProcessEngine.isPresent() && InProcessEmbeddingEngine.MODEL_NAME.equals(modelName)) {
+                return new MeteredEmbeddingModel(inProcessEngine.get(), "onnx", modelName, meterRegistry);
+            }
+            return new MeteredEmbeddingModel(ollamaScheduler.schedule(ollamaEmbeddingModelFactory.create(modelName)),
+                    "ollama", modelName, meterRegistry);
+        };
+    }
+
+    private static final class MeteredEmbeddingModel implements EmbeddingModel {
+
+        private final EmbeddingModel delegate;
+        private final Timer requests;
+        private final Counter texts;
+
+        private MeteredEmbeddingModel(EmbeddingModel delegate, String engine, String modelName,
+                                      MeterRegistry meterRegistry) {
+            this.delegate = delegate;
+            this.requests = Timer.builder("rag.embedding.requests")
+                    .description("Calls to the embedding model, as seen by the caller")
+                    .tag("engine", engine)
+                    .tag("model", modelName)
+                    .register(meterRegistry);
+            this.texts = Counter.builder("rag.embedding.texts")
+                    .description("Texts embedded")
+                    .tag("engine", engine)
+                    .tag("model", modelName)
+                    .register(meterRegistry);
+        }
+
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+            Response<List<Embedding>> response = requests.record(() -> delegate.embedAll(segments));
+            texts.increment(segments.size());
+            return response;
+        }
+
+        @Override
+        public int dimension() {
+            return delegate.dimension();
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package com.ragdemo.config;
 
-import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import com.ragdemo.service.EmbeddingModelFactory;
 import dev.langchain4j.model.ollama.OllamaChatModel;
 import dev.langchain4j.model.ollama.OllamaEmbeddingModel;
 import dev.langchain4j.model.ollama.OllamaStreamingChatModel;
@@ -19,9 +19,6 @@ public class OllamaConfig {
     @Value("${ollama.chat-model:llama3.2}")
     private String chatModelName;
 
-    @Value("${ollama.embedding-model:nomic-embed-text}")
-    private String embeddingModelName;
-
     @Value("${ollama.timeout-seconds:600}")
     private Integer timeoutSeconds;
 
@@ -45,11 +42,15 @@ public class OllamaConfig {
                 .build();
     }
 
+    /**
+     * Embedding clients by model name; which model is active is decided by
+     * {@link com.ragdemo.service.ActiveIndex}.
+     */
     @Bean
-    public OllamaEmbeddingModel ollamaEmbeddingModel() {
-        return OllamaEmbeddingModel.builder()
+    public EmbeddingModelFactory ollamaEmbeddingModelFactory() {
+        return modelName -> OllamaEmbeddingModel.builder()
                 .baseUrl(ollamaBaseUrl)
-                .modelName(embeddingModelName)
+                .modelName(modelName)
                 .build();
     }
 }
@@ -0,0 +1,86 @@
+package com.ragdemo.config;
+
+import com.ragdemo.service.ActiveIndex;
+import com.ragdemo.service.CollectionRegistry;
+import com.ragdemo.vectorstore.EmbeddingStoreFactory;
+import com.ragdemo.vectorstore.HnswEmbeddingStore;
+import com.ragdemo.vectorstore.LexicalIndex;
+import com.ragdemo.vectorstore.MappedFlatEmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * In-process alternatives to Chroma, selected with {@code vector-store.type},
+ * and the lexical index that is used next to whichever store is active.
+ */
+@Configuration
+@Slf4j
+public class VectorStoreConfig {
+
+    @Value("${vector-store.directory:./data/vector-store}")
+    private String directory;
+
+    @Value("${chroma.collection-name:rag-documents}")
+    private String collectionName;
+
+    @Value("${vector-store.flat.quantization:none}")
+    private String flatQuantization;
+
+    @Value("${vector-store.flat.rescore-factor:4}")
+    private int flatRescoreFactor;
+
+    @Bean(destroyMethod = "persist")
+    @ConditionalOnProperty(name = "vector-store.type", havingValue = "hnsw")
+    public HnswEmbeddingStore hnswEmbeddingStore(@Value("${vector-store.hnsw.m:16}") int m,
+                                                 @Value("${vector-store.hnsw.ef-construction:100}") int efConstruction,
+                                                 @Value("${vector-store.hnsw.ef-search:64}") int efSearch,
+                                                 ActiveIndex activeIndex)
+            throws IOException {
+        String name = CollectionRegistry.physicalName(collectionName, activeIndex.current().number());
+        Path snapshotFile = Path.of(directory, name + ".hnsw");
+        log.info("Initializing in-process HNSW embedding store at: {}", snapshotFile.toAbsolutePath());
+        return new HnswEmbeddingStore(snapshotFile, m, efConstruction, efSearch);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "vector-store.type", havingValue = "hnsw")
+    public EmbeddingStoreFactory hnswStoreFactory(@Value("${vector-store.hnsw.m:16}") int m,
+                                                  @Value("${vector-store.hnsw.ef-construction:100}") int efConstruction,
+                                                  @Value("${vector-store.hnsw.ef-search:64}") int efSearch) {
+        return name -> new HnswEmbeddingStore(Path.of(directory, name + ".hnsw"), m, efConstruction, efSearch);
+    }
+
+    @Bean
+    public LexicalIndex lexicalIndex(@Value("${rag.retrieval.bm25.k1:1.2}") float k1,
+                                     @Value("${rag.retrieval.bm25.b:0.75}") float b) {
+        return new LexicalIndex(k1, b);
+    }
+
+    @Bean(destroyMethod = "persist")
+    @ConditionalOnProperty(name = "vector-store.type", havingValue = "flat")
+    public MappedFlatEmbeddingStore flatEmbeddingStore(ActiveIndex activeIndex) throws IOException {
+        Path storeDirectory = Path.of(directory);
+        log.info("Initializing memory-mapped flat embedding store in: {} (quantization {})",
+                storeDirectory.toAbsolutePath(), flatQuantization);
+        return new MappedFlatEmbeddingStore(storeDirectory,
+                CollectionRegistry.physicalName(collectionName, activeIndex.current().number()),
+                quantization(), flatRescoreFactor);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "vector-store.type", havingValue = "flat")
+    public EmbeddingStoreFactory flatStoreFactory() {
+        return name -> new MappedFlatEmbeddingStore(Path.of(directory), name, quantization(), flatRescoreFactor);
+    }
+
+    private MappedFlatEmbeddingStore.Quantization quantization() {
+        return MappedFlatEmbeddingStore.Quantization.valueOf(flatQuantization.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -1,34 +1,59 @@
 package com.ragdemo.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ragdemo.dto.ChatHistoryEntry;
+import com.ragdemo.dto.ChatHistoryPage;
 import com.ragdemo.dto.ChatRequest;
 import com.ragdemo.dto.ChatResponse;
+import com.ragdemo.dto.SessionRequest;
 import com.ragdemo.dto.SessionResponse;
 import com.ragdemo.entity.ChatMessage;
 import com.ragdemo.service.ChatService;
+import com.ragdemo.service.ChatStreamExecutor;
+import com.ragdemo.service.CollectionRouter;
+import com.ragdemo.service.ChatStreamExecutor.StreamPermit;
 import com.ragdemo.service.RagService;
+import com.ragdemo.service.SseTokenCoalescer;
+import com.ragdemo.service.SseTokenCoalescer.TokenSink;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 @RestController
 @RequestMapping("/api/chat")
 @RequiredArgsConstructor
-@CrossOrigin(origins = "*")
+@CrossOrigin(origins = "*", exposedHeaders = HttpHeaders.RETRY_AFTER)
 public class ChatController {
 
     private final ChatService chatService;
     private final RagService ragService;
+    private final ChatStreamExecutor chatStreamExecutor;
+    private final CollectionRouter collectionRouter;
+    private final SseTokenCoalescer tokenCoalescer;
+    private final ObjectMapper objectMapper;
 
     @PostMapping("/message")
     public ResponseEntity<ChatResponse> sendMessage(@RequestBody ChatRequest request) {
-        String response = chatService.generateResponse(request.getMessage(), request.getSessionId());
-        return ResponseEntity.ok(new ChatResponse(response, request.getSessionId()));
+        try {
+            String response = chatService.generateResponse(request.getMessage(), request.getSessionId());
+            return ResponseEntity.ok(new ChatResponse(response, request.getSessionId()));
+        } catch (RejectedExecutionException e) {
+            // Too many chats are already waiting for the model
+            return serverBusy();
+        }
     }
 
     @GetMapping("/history/{sessionId}")
@@ -37,37 +62,112 @@ public class ChatController {
         return ResponseEntity.ok(history);
     }
 
+    @GetMapping("/history/{sessionId}/page")
+    public ResponseEntity<ChatHistoryPage> getChatHistoryPage(@PathVariable String sessionId,
+                                                              @RequestParam(required = false) String cursor,
+                                                              @RequestParam(defaultValue = "50") int limit) {
+        try {
+            return ResponseEntity.ok(chatService.getChatHistoryPage(sessionId, cursor, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    /**
+     * The whole history as newline-delimited JSON, read and written page by page.
+     */
+    @GetMapping(value = "/history/{sessionId}/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamChatHistory(@PathVariable String sessionId) {
+        StreamingResponseBody body = out -> {
+            try {
+                chatService.forEachHistoryPage(sessionId, page -> {
+                    try {
+                        for (ChatHistoryEntry entry : page) {
+                            out.write(objectMapper.writeValueAsBytes(entry));
+                            out.write('\n');
+                        }
+                        out.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * Starts a session, optionally routed to the collections given in the body.
+     */
     @PostMapping("/session")
-    public ResponseEntity<SessionResponse> createSession() {
+    public ResponseEntity<SessionResponse> createSession(@RequestBody(required = false) SessionRequest request) {
         String sessionId = chatService.createNewSession();
-        return ResponseEntity.ok(new SessionResponse(sessionId));
+        if (request == null || request.getCollections() == null || request.getCollections().isEmpty()) {
+            return ResponseEntity.ok(new SessionResponse(sessionId, collectionRouter.getDefaultCollections()));
+        }
+        try {
+            return ResponseEntity.ok(new SessionResponse(sessionId,
+                    collectionRouter.assign(sessionId, request.getCollections())));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @PutMapping("/session/{sessionId}/collections")
+    public ResponseEntity<SessionResponse> setSessionCollections(@PathVariable String sessionId,
+                                                                 @RequestBody List<String> collections) {
+        try {
+            return ResponseEntity.ok(new SessionResponse(sessionId, collectionRouter.assign(sessionId, collections)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
     }
 
     @PostMapping(value = "/message/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter streamMessage(@RequestBody ChatRequest request) {
+    public ResponseEntity<SseEmitter> streamMessage(@RequestBody ChatRequest request) {
+        Optional<StreamPermit> admitted = chatStreamExecutor.tryAdmit();
+        if (admitted.isEmpty()) {
+            return serverBusy();
+        }
+        StreamPermit permit = admitted.get();
+
         SseEmitter emitter = new SseEmitter(600000L); // 10 minute timeout
         
         StringBuilder fullResponse = new StringBuilder();
+        AtomicReference<CompletableFuture<String>> stream = new AtomicReference<>();
+        TokenSink tokens = tokenCoalescer.open(emitter, e -> {
+            // Client went away, stop generating for it
+            cancel(stream);
+            emitter.completeWithError(e);
+        });
+        
+        emitter.onError(throwable -> {
+            // Log error
+            System.err.println("SSE Error: " + throwable.getMessage());
+            cancel(stream);
+        });
         
-        CompletableFuture.runAsync(() -> {
+        emitter.onTimeout(() -> {
+            cancel(stream);
+            emitter.complete();
+        });
+
+        emitter.onCompletion(permit::release);
+
+        Runnable task = () -> {
             try {
-                ragService.generateStreamingResponse(
+                CompletableFuture<String> generation = ragService.generateStreamingResponse(
                     request.getMessage(),
                     request.getSessionId(),
                     token -> {
-                        try {
-                            if (token != null) {
-                                fullResponse.append(token);
-                                // Send token exactly as received - preserve all formatting
-                                emitter.send(SseEmitter.event()
-                                    .data(token)
-                                    .name("token"));
-                            }
-                        } catch (IOException e) {
-                            emitter.completeWithError(e);
+                        if (token != null) {
+                            fullResponse.append(token);
+                            tokens.accept(token);
                         }
                     },
-                    () -> {
+                    () -> tokens.close(() -> {
                         try {
                             // Save to chat history after streaming completes
                             chatService.saveMessage(
@@ -79,26 +179,41 @@ public class ChatController {
                                 .data("[DONE]")
                                 .name("done"));
                             emitter.complete();
-                        } catch (IOException e) {
+                        } catch (IOException | RuntimeException e) {
                             emitter.completeWithError(e);
                         }
-                    }
+                    })
                 );
+                stream.set(generation);
+                // The error itself has already been sent as a final chunk
+                generation.exceptionally(error -> {
+                    tokens.close(emitter::complete);
+                    return null;
+                });
             } catch (Exception e) {
                 emitter.completeWithError(e);
             }
-        });
-        
-        emitter.onError(throwable -> {
-            // Log error
-            System.err.println("SSE Error: " + throwable.getMessage());
-        });
-        
-        emitter.onTimeout(() -> {
-            emitter.complete();
-        });
-        
-        return emitter;
+        };
+
+        try {
+            chatStreamExecutor.execute(permit, task);
+        } catch (RejectedExecutionException e) {
+            return serverBusy();
+        }
+        return ResponseEntity.ok(emitter);
+    }
+
+    private <T> ResponseEntity<T> serverBusy() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(chatStreamExecutor.getRetryAfterSeconds()))
+                .build();
+    }
+
+    private static void cancel(AtomicReference<CompletableFuture<String>> stream) {
+        CompletableFuture<String> generation = stream.get();
+        if (generation != null) {
+            generation.cancel(true);
+        }
     }
 }
 
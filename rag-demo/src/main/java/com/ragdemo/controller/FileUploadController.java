@@ -1,14 +1,19 @@
 package com.ragdemo.controller;
 
-import com.ragdemo.service.PdfProcessingService;
+import com.ragdemo.dto.IngestionJobStatus;
+import com.ragdemo.service.CollectionRegistry;
+import com.ragdemo.service.IngestionJobService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/upload")
@@ -17,10 +22,12 @@ import java.util.Map;
 @CrossOrigin(origins = "*")
 public class FileUploadController {
 
-    private final PdfProcessingService pdfProcessingService;
+    private final IngestionJobService ingestionJobService;
 
     @PostMapping("/pdf")
-    public ResponseEntity<Map<String, String>> uploadPdf(@RequestParam("file") MultipartFile file) {
+    public ResponseEntity<Map<String, String>> uploadPdf(@RequestParam("file") MultipartFile file,
+                                                         @RequestParam(value = "collection", required = false)
+                                                         String collection) {
         Map<String, String> response = new HashMap<>();
         try {
             if (file.isEmpty()) {
@@ -33,14 +40,82 @@ public class FileUploadController {
                 return ResponseEntity.badRequest().body(response);
             }
 
-            pdfProcessingService.processPdf(file);
-            response.put("message", "PDF processed successfully");
-            return ResponseEntity.ok(response);
+            if (collection != null) {
+                try {
+                    CollectionRegistry.validateName(collection);
+                } catch (IllegalArgumentException e) {
+                    response.put("error", e.getMessage());
+                    return ResponseEntity.badRequest().body(response);
+                }
+            }
+
+            IngestionJobStatus job = ingestionJobService.submit(file, collection);
+            response.put("message", "PDF accepted for processing");
+            response.put("jobId", job.getJobId());
+            return ResponseEntity.accepted().body(response);
 
+        } catch (RejectedExecutionException e) {
+            log.warn("Ingestion queue is full, rejecting {}", file.getOriginalFilename());
+            response.put("error", "Too many PDFs are being processed, please try again later");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response);
         } catch (Exception e) {
             log.error("Error processing PDF", e);
             response.put("error", "Failed to process PDF: " + e.getMessage());
             return ResponseEntity.internalServerError().body(response);
         }
     }
+
+    @PostMapping("/bulk")
+    public ResponseEntity<Map<String, String>> uploadBulk(@RequestParam("files") List<MultipartFile> files,
+                                                          @RequestParam(value = "collection", required = false)
+                                                          String collection) {
+        Map<String, String> response = new HashMap<>();
+        try {
+            if (files.isEmpty()) {
+                response.put("error", "No files uploaded");
+                return ResponseEntity.badRequest().body(response);
+            }
+
+            for (MultipartFile file : files) {
+                if (file.isEmpty()) {
+                    response.put("error", "File is empty: " + file.getOriginalFilename());
+                    return ResponseEntity.badRequest().body(response);
+                }
+                if (!IngestionJobService.isPdf(file) && !IngestionJobService.isArchive(file)) {
+                    response.put("error", "Only PDF files and ZIP archives are allowed: " + file.getOriginalFilename());
+                    return ResponseEntity.badRequest().body(response);
+                }
+            }
+
+            if (collection != null) {
+                try {
+                    CollectionRegistry.validateName(collection);
+                } catch (IllegalArgumentException e) {
+                    response.put("error", e.getMessage());
+                    return ResponseEntity.badRequest().body(response);
+                }
+            }
+
+            IngestionJobStatus job = ingestionJobService.submitBulk(files, collection);
+            response.put("message", files.size() + " files accepted for processing");
+            response.put("jobId", job.getJobId());
+            return ResponseEntity.accepted().body(response);
+
+        } catch (RejectedExecutionException e) {
+            log.warn("Ingestion queue is full, rejecting bulk upload of {} files", files.size());
+            response.put("error", "Too many PDFs are being processed, please try again later");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response);
+        } catch (Exception e) {
+            log.error("Error processing bulk upload", e);
+            response.put("error", "Failed to process upload: " + e.getMessage());
+            return ResponseEntity.internalServerError().body(response);
+        }
+    }
+
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<IngestionJobStatus> getJobStatus(@PathVariable String jobId) {
+        return ingestionJobService.getStatus(jobId)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
 }
@@ -0,0 +1,42 @@
+package com.ragdemo.controller;
+
+import com.ragdemo.dto.IndexStatus;
+import com.ragdemo.dto.ReindexRequest;
+import com.ragdemo.service.ActiveIndex;
+import com.ragdemo.service.ReindexService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("/api/index")
+@RequiredArgsConstructor
+@Slf4j
+@CrossOrigin(origins = "*")
+public class IndexController {
+
+    private final ReindexService reindexService;
+    private final ActiveIndex activeIndex;
+
+    @GetMapping
+    public ResponseEntity<IndexStatus> getStatus() {
+        return ResponseEntity.ok(reindexService.status());
+    }
+
+    @PostMapping("/reindex")
+    public ResponseEntity<IndexStatus> reindex(@RequestBody(required = false) ReindexRequest request) {
+        String model = request == null || request.getModel() == null || request.getModel().isBlank()
+                ? activeIndex.configuredModelName()
+                : request.getModel();
+        try {
+            return ResponseEntity.accepted().body(reindexService.start(model));
+        } catch (IllegalStateException e) {
+            log.warn("Rejected rebuild for {}: {}", model, e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(reindexService.status());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(reindexService.status());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.ragdemo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * One chat turn as returned by the paged history API, selected straight into
+ * this class instead of loading {@code ChatMessage} entities.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatHistoryEntry {
+    private Long id;
+    private String message;
+    private String response;
+    private LocalDateTime timestamp;
+}
@@ -0,0 +1,31 @@
+package com.ragdemo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IndexStatus {
+
+    public enum State {
+        RUNNING, COMPLETED, FAILED
+    }
+
+    private int activeGeneration;
+    private String activeModel;
+    private String configuredModel;
+    // The fields below describe the latest rebuild and are null if there was none
+    private State rebuildStatus;
+    private Integer rebuildGeneration;
+    private String rebuildModel;
+    private long segmentsDone;
+    private long segmentsTotal;
+    private long segmentsEmbedded;
+    private String error;
+    private LocalDateTime startedAt;
+    private LocalDateTime completedAt;
+}
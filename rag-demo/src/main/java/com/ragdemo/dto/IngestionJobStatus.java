@@ -0,0 +1,37 @@
+package com.ragdemo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IngestionJobStatus {
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    private String jobId;
+    private String fileName;
+    // Null for the default collection
+    private String collection;
+    private State status;
+    private int segmentsDone;
+    private int segmentsTotal;
+    private int segmentsEmbedded;
+    private int segmentsReused;
+    // One per PDF; bulk jobs count the PDFs of their archives as they are read
+    private int documentsTotal;
+    private int documentsDone;
+    private int documentsFailed;
+    // "name: error" for each document that could not be ingested
+    private List<String> failures;
+    private String error;
+    private LocalDateTime submittedAt;
+    private LocalDateTime completedAt;
+}
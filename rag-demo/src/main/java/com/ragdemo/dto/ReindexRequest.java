@@ -0,0 +1,9 @@
+package com.ragdemo.dto;
+
+import lombok.Data;
+
+@Data
+public class ReindexRequest {
+    // Embedding model to rebuild the index with; the configured one when empty
+    private String model;
+}
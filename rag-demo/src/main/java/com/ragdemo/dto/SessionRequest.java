@@ -0,0 +1,11 @@
+package com.ragdemo.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class SessionRequest {
+    // Collections to retrieve from; the configured defaults when empty
+    private List<String> collections;
+}
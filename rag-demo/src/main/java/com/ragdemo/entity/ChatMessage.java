@@ -8,13 +8,19 @@ import lombok.NoArgsConstructor;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "chat_messages")
+@Table(name = "chat_messages",
+        indexes = @Index(name = "idx_chat_messages_session_time", columnList = "sessionId, timestamp, id"))
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class ChatMessage {
+    public static final String ID_SEQUENCE = "chat_messages_seq";
+    public static final int ID_ALLOCATION_SIZE = 50;
+
+    // A pooled sequence instead of IDENTITY so Hibernate can batch inserts
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "chat_message_id")
+    @SequenceGenerator(name = "chat_message_id", sequenceName = ID_SEQUENCE, allocationSize = ID_ALLOCATION_SIZE)
     private Long id;
 
     @Column(nullable = false)
@@ -31,7 +37,10 @@ public class ChatMessage {
 
     @PrePersist
     protected void onCreate() {
-        timestamp = LocalDateTime.now();
+        // Write-behind turns keep the time they were queued at
+        if (timestamp == null) {
+            timestamp = LocalDateTime.now();
+        }
     }
 }
 
@@ -0,0 +1,35 @@
+package com.ragdemo.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * The collections a session retrieves from. Sessions without a row use the
+ * configured default collections.
+ */
+@Entity
+@Table(name = "chat_sessions")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatSession {
+    @Id
+    @Column(length = 64)
+    private String sessionId;
+
+    // Comma-separated collection names
+    @Column(nullable = false, length = 1000)
+    private String collections;
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,35 @@
+package com.ragdemo.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Marks a segment as stored in a collection other than the default one, whose
+ * markers live on {@link SegmentEmbedding#getEmbeddingId()}.
+ */
+@Entity
+@Table(name = "collection_segments",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"collectionName", "modelName", "contentHash"}))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CollectionSegment {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false, length = 63)
+    private String collectionName;
+
+    @Column(nullable = false)
+    private String modelName;
+
+    @Column(nullable = false, length = 64)
+    private String contentHash;
+
+    // Id of the vector in the collection's embedding store
+    @Column(nullable = false)
+    private String embeddingId;
+}
@@ -0,0 +1,48 @@
+package com.ragdemo.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * One build of the vector index for an embedding model. Generation 0 is the
+ * index the application started with and has no row; later generations are
+ * built next to the active one and take over when they are complete.
+ */
+@Entity
+@Table(name = "index_generations")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IndexGeneration {
+
+    public enum State {
+        BUILDING, ACTIVE, RETIRED, FAILED
+    }
+
+    @Id
+    private Integer generation;
+
+    @Column(nullable = false)
+    private String modelName;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private State state;
+
+    @Column(length = 1000)
+    private String error;
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    private LocalDateTime activatedAt;
+
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,47 @@
+package com.ragdemo.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "segment_embeddings",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"modelName", "contentHash"}))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SegmentEmbedding {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false, length = 64)
+    private String contentHash;
+
+    @Column(nullable = false)
+    private String modelName;
+
+    @Column(nullable = false, length = 4000)
+    private String text;
+
+    // Little-endian float32 vector as returned by the embedding model
+    @Column(nullable = false, length = 65536)
+    private byte[] vector;
+
+    // Id of the vector in the embedding store, null when it is not stored there
+    private String embeddingId;
+
+    // Set when the default collection was lost while holding this segment, until it is refilled
+    private Boolean refill;
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+    }
+}
@@ -1,13 +1,37 @@
 package com.ragdemo.repository;
 
+import com.ragdemo.dto.ChatHistoryEntry;
 import com.ragdemo.entity.ChatMessage;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 @Repository
 public interface ChatMessageRepository extends JpaRepository<ChatMessage, Long> {
     List<ChatMessage> findBySessionIdOrderByTimestampAsc(String sessionId);
+
+    @Query("select new com.ragdemo.dto.ChatHistoryEntry(m.id, m.message, m.response, m.timestamp) " +
+            "from ChatMessage m where m.sessionId = :sessionId order by m.timestamp asc, m.id asc")
+    List<ChatHistoryEntry> findHistory(String sessionId, Limit limit);
+
+    // Keyset pagination: continues after (timestamp, id), served by the (sessionId, timestamp, id) index
+    @Query("select new com.ragdemo.dto.ChatHistoryEntry(m.id, m.message, m.response, m.timestamp) " +
+            "from ChatMessage m where m.sessionId = :sessionId " +
+            "and (m.timestamp > :timestamp or (m.timestamp = :timestamp and m.id > :id)) " +
+            "order by m.timestamp asc, m.id asc")
+    List<ChatHistoryEntry> findHistoryAfter(String sessionId, LocalDateTime timestamp, Long id, Limit limit);
+
+    @Query("select new com.ragdemo.dto.ChatHistoryEntry(m.id, m.message, m.response, m.timestamp) " +
+            "from ChatMessage m where m.sessionId = :sessionId order by m.timestamp desc, m.id desc")
+    List<ChatHistoryEntry> findRecentHistory(String sessionId, Limit limit);
+
+    boolean existsBySessionIdAndTimestamp(String sessionId, LocalDateTime timestamp);
+
+    @Query("select max(m.id) from ChatMessage m")
+    Long findMaxId();
 }
 
@@ -0,0 +1,48 @@
+package com.ragdemo.repository;
+
+import com.ragdemo.entity.CollectionSegment;
+import com.ragdemo.entity.SegmentEmbedding;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface CollectionSegmentRepository extends JpaRepository<CollectionSegment, Long> {
+    List<CollectionSegment> findByCollectionNameAndModelNameAndContentHashIn(String collectionName, String modelName,
+                                                                             Collection<String> contentHashes);
+
+    @Query("select c.id as id, c.embeddingId as embeddingId, s.text as text " +
+            "from CollectionSegment c, SegmentEmbedding s " +
+            "where s.modelName = c.modelName and s.contentHash = c.contentHash " +
+            "and c.collectionName = :collectionName and c.modelName = :modelName and c.id > :afterId order by c.id")
+    List<SegmentEmbeddingRepository.StoredText> findStoredText(String collectionName, String modelName, Long afterId,
+                                                               Limit limit);
+
+    long countByModelName(String modelName);
+
+    @Query("select distinct c.collectionName from CollectionSegment c where c.modelName = :modelName")
+    List<String> findCollectionNames(String modelName);
+
+    @Transactional
+    @Modifying
+    @Query("delete from CollectionSegment c where c.modelName = :modelName")
+    int deleteByModelName(String modelName);
+
+    /**
+     * Segments stored in the collection under {@code modelName} that are not yet stored there under
+     * {@code targetModelName}.
+     */
+    @Query("select s from SegmentEmbedding s, CollectionSegment c " +
+            "where c.collectionName = :collectionName and c.modelName = :modelName " +
+            "and s.modelName = c.modelName and s.contentHash = c.contentHash and s.id > :afterId " +
+            "and not exists (select d.id from CollectionSegment d where d.collectionName = c.collectionName " +
+            "and d.modelName = :targetModelName and d.contentHash = c.contentHash) order by s.id")
+    List<SegmentEmbedding> findStoredWithoutTarget(String collectionName, String modelName, String targetModelName,
+                                                   Long afterId, Limit limit);
+}
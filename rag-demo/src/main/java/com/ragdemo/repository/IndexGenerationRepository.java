@@ -0,0 +1,14 @@
+package com.ragdemo.repository;
+
+import com.ragdemo.entity.IndexGeneration;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface IndexGenerationRepository extends JpaRepository<IndexGeneration, Integer> {
+    Optional<IndexGeneration> findFirstByStateOrderByGenerationDesc(IndexGeneration.State state);
+
+    Optional<IndexGeneration> findFirstByOrderByGenerationDesc();
+}
@@ -0,0 +1,73 @@
+package com.ragdemo.repository;
+
+import com.ragdemo.entity.SegmentEmbedding;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface SegmentEmbeddingRepository extends JpaRepository<SegmentEmbedding, Long> {
+    List<SegmentEmbedding> findByModelNameAndContentHashIn(String modelName, Collection<String> contentHashes);
+
+    long countByModelNameAndEmbeddingIdIsNotNull(String modelName);
+
+    Optional<SegmentEmbedding> findFirstByModelNameAndEmbeddingIdIsNotNull(String modelName);
+
+    @Query("select distinct s.modelName from SegmentEmbedding s where s.embeddingId is not null")
+    List<String> findStoredModelNames();
+
+    @Transactional
+    @Modifying
+    @Query("update SegmentEmbedding s set s.embeddingId = null where s.modelName = :modelName and s.embeddingId is not null")
+    int clearEmbeddingIds(String modelName);
+
+    /**
+     * Clears the stored markers under {@code modelName} and flags those segments for
+     * refilling, as the default collection no longer holds them.
+     */
+    @Transactional
+    @Modifying
+    @Query("update SegmentEmbedding s set s.embeddingId = null, s.refill = true " +
+            "where s.modelName = :modelName and s.embeddingId is not null")
+    int markForRefill(String modelName);
+
+    @Transactional
+    @Modifying
+    @Query("update SegmentEmbedding s set s.refill = null where s.refill = true")
+    int clearRefill();
+
+    boolean existsByRefillTrue();
+
+    @Query("select s.id as id, s.embeddingId as embeddingId, s.text as text from SegmentEmbedding s " +
+            "where s.modelName = :modelName and s.embeddingId is not null and s.id > :afterId order by s.id")
+    List<StoredText> findStoredText(String modelName, Long afterId, Limit limit);
+
+    /**
+     * Segments stored under {@code modelName} whose content is not yet stored under {@code targetModelName}.
+     */
+    @Query("select s from SegmentEmbedding s where s.modelName = :modelName and s.embeddingId is not null " +
+            "and s.id > :afterId and not exists (select t.id from SegmentEmbedding t " +
+            "where t.modelName = :targetModelName and t.contentHash = s.contentHash and t.embeddingId is not null) " +
+            "order by s.id")
+    List<SegmentEmbedding> findStoredWithoutTarget(String modelName, String targetModelName, Long afterId,
+                                                   Limit limit);
+
+    @Query("select s.id as id, s.embeddingId as embeddingId, s.text as text from SegmentEmbedding s " +
+            "where s.refill = true and s.id > :afterId order by s.id")
+    List<StoredText> findRefillText(Long afterId, Limit limit);
+
+    interface StoredText {
+        Long getId();
+
+        String getEmbeddingId();
+
+        String getText();
+    }
+}
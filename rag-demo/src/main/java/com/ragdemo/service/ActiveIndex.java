@@ -0,0 +1,123 @@
+package com.ragdemo.service;
+
+import com.ragdemo.entity.IndexGeneration;
+import com.ragdemo.repository.IndexGenerationRepository;
+import com.ragdemo.repository.SegmentEmbeddingRepository;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The index generation that queries and uploads use: its number, which selects
+ * the collections' stores, and its embedding model. Replaced as a whole when a
+ * rebuilt index takes over, so a request that read it once embeds and searches
+ * consistently.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ActiveIndex {
+
+    private final IndexGenerationRepository indexGenerationRepository;
+    private final SegmentEmbeddingRepository segmentEmbeddingRepository;
+    private final EmbeddingModelFactory embeddingModelFactory;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${ollama.embedding-model:nomic-embed-text}")
+    private String ollamaModelName;
+
+    @Value("${embedding.engine:ollama}")
+    private String engine;
+
+    private String configuredModelName;
+
+    // Ingestion batches hold the read lock while storing, so no batch straddles a switch
+    private final ReadWriteLock switchLock = new ReentrantReadWriteLock();
+    private volatile Generation current;
+
+    public record Generation(int number, String modelName, EmbeddingModel embeddingModel) {
+    }
+
+    @PostConstruct
+    void init() {
+        configuredModelName = "onnx".equals(engine) ? InProcessEmbeddingEngine.MODEL_NAME : ollamaModelName;
+        current = indexGenerationRepository.findFirstByStateOrderByGenerationDesc(IndexGeneration.State.ACTIVE)
+                .map(active -> generation(active.getGeneration(), active.getModelName()))
+                .orElseGet(() -> generation(0, initialModelName()));
+        Gauge.builder("rag.index.generation", this, index -> index.current().number())
+                .description("Generation of the vector index in use")
+                .register(meterRegistry);
+        if (!current.modelName().equals(configuredModelName)) {
+            log.info("Index generation {} uses {}; it is served until the index for {} is built",
+                    current.number(), current.modelName(), configuredModelName);
+        }
+    }
+
+    public Generation current() {
+        return current;
+    }
+
+    public String modelName() {
+        return current.modelName();
+    }
+
+    /**
+     * The model selected by {@code embedding.engine} and {@code ollama.embedding-model},
+     * which the index is rebuilt for when it differs from the active one.
+     */
+    public String configuredModelName() {
+        return configuredModelName;
+    }
+
+    public Generation generation(int number, String modelName) {
+        return new Generation(number, modelName, embeddingModelFactory.create(modelName));
+    }
+
+    /**
+     * Held while storing a batch of segments.
+     */
+    public Lock ingestionLock() {
+        return switchLock.readLock();
+    }
+
+    /**
+     * Runs {@code prepare} while no ingestion batch is in flight and then makes
+     * {@code next} the active generation, unless {@code prepare} returns false.
+     *
+     * @return whether {@code next} is active now
+     */
+    public boolean switchTo(Generation next, BooleanSupplier prepare) {
+        switchLock.writeLock().lock();
+        try {
+            if (!prepare.getAsBoolean()) {
+                return false;
+            }
+            current = next;
+        } finally {
+            switchLock.writeLock().unlock();
+        }
+        log.info("Switched to index generation {} ({})", next.number(), next.modelName());
+        return true;
+    }
+
+    private String initialModelName() {
+        // Before the first rebuild nothing records which model built the index. If all
+        // stored segments belong to one other model, keep serving with that one.
+        if (segmentEmbeddingRepository.countByModelNameAndEmbeddingIdIsNotNull(configuredModelName) > 0) {
+            return configuredModelName;
+        }
+        List<String> storedModels = segmentEmbeddingRepository.findStoredModelNames();
+        return storedModels.size() == 1 ? storedModels.get(0) : configuredModelName;
+    }
+}
@@ -0,0 +1,383 @@
+package com.ragdemo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ragdemo.entity.ChatMessage;
+import com.ragdemo.repository.ChatMessageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManagerFactory;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind persistence for chat turns.
+ * <p>
+ * A turn is appended to a local journal file and queued in memory, so saving it
+ * costs no database round trip on the request path. A scheduled flush inserts
+ * the queued turns as JDBC batches and then trims the journal down to what is
+ * still queued. Turns left in the journal by a crash are replayed on startup and
+ * the queue is flushed on shutdown.
+ * <p>
+ * Callers never wait on the disk: the journal is synced every
+ * {@code fsync-interval-ms}, one sync covering every turn appended since the
+ * last. Turns not yet in the database, queued or being inserted, are limited to
+ * {@code queue-capacity}; a turn offered beyond that is dropped and counted in
+ * {@code rag.chat.history.rejected}.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ChatHistoryWriter {
+
+    private final ChatMessageRepository chatMessageRepository;
+    private final EntityManagerFactory entityManagerFactory;
+    private final JdbcTemplate jdbcTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${chat.history.journal-path:./data/chat-history.journal}")
+    private String journalPath;
+
+    @Value("${chat.history.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${chat.history.journal-fsync:true}")
+    private boolean journalFsync;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Object lock = new Object();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ArrayDeque<ChatMessage> queue = new ArrayDeque<>();
+    private List<ChatMessage> inFlight = List.of();
+    private Path journal;
+    private FileChannel journalChannel;
+    // Turns appended to the journal, and how many of them are known to be on disk
+    private long journaledCount;
+    private volatile long syncedCount;
+    private Timer flushTimer;
+    private Timer syncTimer;
+    private Counter rejected;
+
+    @PostConstruct
+    void init() throws IOException {
+        flushTimer = Timer.builder("rag.chat.history.flush")
+                .description("Time to insert one batch of queued chat turns")
+                .register(meterRegistry);
+        syncTimer = Timer.builder("rag.chat.history.journal.sync")
+                .description("Time to sync the journal, once for every group of turns")
+                .register(meterRegistry);
+        rejected = Counter.builder("rag.chat.history.rejected")
+                .description("Turns dropped because the queue was full")
+                .register(meterRegistry);
+        Gauge.builder("rag.chat.history.pending", this, ChatHistoryWriter::pendingCount)
+                .register(meterRegistry);
+
+        alignSequence();
+
+        journal = Path.of(journalPath).toAbsolutePath();
+        Files.createDirectories(journal.getParent());
+        List<ChatMessage> unflushed = readJournal();
+        journalChannel = openJournal();
+        if (!unflushed.isEmpty()) {
+            // A crash between a commit and the journal trim leaves turns that are already stored
+            unflushed.removeIf(m -> chatMessageRepository.existsBySessionIdAndTimestamp(m.getSessionId(), m.getTimestamp()));
+            log.info("Replaying {} chat turns from {}", unflushed.size(), journal);
+            synchronized (lock) {
+                queue.addAll(unflushed);
+            }
+            flush();
+        }
+        rewriteJournal();
+    }
+
+    @PreDestroy
+    void shutdown() throws IOException {
+        flush();
+        journalChannel.close();
+    }
+
+    /**
+     * Queues a turn for insertion without waiting for the disk or the database.
+     * A turn that finds the queue full is dropped, logged and counted.
+     *
+     * @return whether the turn was queued
+     */
+    public boolean offer(String sessionId, String message, String response) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setSessionId(sessionId);
+        chatMessage.setMessage(message);
+        chatMessage.setResponse(response);
+        // Truncated to what the database stores so replay can recognise stored turns
+        chatMessage.setTimestamp(LocalDateTime.now().truncatedTo(ChronoUnit.MICROS));
+
+        synchronized (lock) {
+            if (queue.size() + inFlight.size() >= queueCapacity) {
+                rejected.increment();
+                log.warn("Chat history queue is full ({} turns waiting for the database), dropping a turn of session {}",
+                        queueCapacity, sessionId);
+                return false;
+            }
+            try {
+                appendToJournal(List.of(chatMessage));
+                journaledCount++;
+            } catch (IOException e) {
+                // Still stored with the next flush, only not replayed after a crash
+                log.warn("Could not journal chat turn of session {}: {}", sessionId, e.getMessage());
+            }
+            queue.add(chatMessage);
+        }
+        return true;
+    }
+
+    /**
+     * Syncs the turns appended since the last sync to disk, all with one force.
+     */
+    @Scheduled(fixedDelayString = "${chat.history.fsync-interval-ms:100}")
+    public void syncJournal() {
+        if (!journalFsync) {
+            return;
+        }
+        FileChannel channel;
+        long target;
+        synchronized (lock) {
+            if (syncedCount >= journaledCount) {
+                return;
+            }
+            channel = journalChannel;
+            target = journaledCount;
+        }
+        try {
+            syncTimer.recordCallable(() -> {
+                channel.force(false);
+                return null;
+            });
+            syncedCount = Math.max(syncedCount, target);
+        } catch (ClosedChannelException e) {
+            // The journal was rewritten meanwhile; the next sync covers the new one
+        } catch (Exception e) {
+            // The turns are still queued and reach the database with the next flush
+            log.warn("Could not sync chat history journal {}: {}", journal, e.getMessage());
+        }
+    }
+
+    /**
+     * Copies of the turns of {@code sessionId} that are not known to be committed yet.
+     */
+    public List<ChatMessage> pendingMessages(String sessionId) {
+        List<ChatMessage> pending = new ArrayList<>();
+        synchronized (lock) {
+            copyMatching(inFlight, sessionId, pending);
+            copyMatching(queue, sessionId, pending);
+        }
+        return pending;
+    }
+
+    @Scheduled(fixedDelayString = "${chat.history.flush-interval-ms:1000}")
+    public void flush() {
+        try {
+            flushQueued();
+        } catch (RuntimeException e) {
+            log.error("Failed to flush chat history, keeping {} turns queued", pendingCount(), e);
+        }
+    }
+
+    private void flushQueued() {
+        flushLock.lock();
+        try {
+            List<ChatMessage> batch;
+            synchronized (lock) {
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(queue);
+                queue.clear();
+                inFlight = batch;
+            }
+
+            try {
+                // One transaction; hibernate.jdbc.batch_size splits it into JDBC batches
+                flushTimer.record(() -> chatMessageRepository.saveAll(batch));
+            } catch (RuntimeException e) {
+                // Offers count these already, so putting them back cannot grow the backlog
+                synchronized (lock) {
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        ChatMessage chatMessage = batch.get(i);
+                        chatMessage.setId(null);
+                        queue.addFirst(chatMessage);
+                    }
+                    inFlight = List.of();
+                }
+                throw e;
+            }
+
+            synchronized (lock) {
+                inFlight = List.of();
+            }
+            rewriteJournal();
+            log.debug("Flushed {} chat turns", batch.size());
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private int pendingCount() {
+        synchronized (lock) {
+            return queue.size() + inFlight.size();
+        }
+    }
+
+    /**
+     * Makes sure the sequence hands out ids above every existing row, e.g. rows
+     * written while the table still used an identity column. The pooled optimizer
+     * uses the block of ids ending at the value it reads from the sequence.
+     */
+    private void alignSequence() {
+        Long maxId = chatMessageRepository.findMaxId();
+        if (maxId == null) {
+            return;
+        }
+        Dialect dialect = entityManagerFactory.unwrap(SessionFactoryImplementor.class).getJdbcServices().getDialect();
+        Long next = jdbcTemplate.queryForObject(
+                dialect.getSequenceSupport().getSequenceNextValString(ChatMessage.ID_SEQUENCE), Long.class);
+        if (next != null && next - ChatMessage.ID_ALLOCATION_SIZE < maxId) {
+            long restart = maxId + ChatMessage.ID_ALLOCATION_SIZE;
+            jdbcTemplate.execute("ALTER SEQUENCE " + ChatMessage.ID_SEQUENCE + " RESTART WITH " + restart);
+            log.info("Moved {} past existing chat messages (restart at {})", ChatMessage.ID_SEQUENCE, restart);
+        }
+    }
+
+    private FileChannel openJournal() throws IOException {
+        return FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void appendToJournal(Collection<ChatMessage> messages) throws IOException {
+        appendTo(journalChannel, messages);
+    }
+
+    private void appendTo(FileChannel channel, Collection<ChatMessage> messages) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (ChatMessage m : messages) {
+            JournalEntry entry = new JournalEntry(m.getSessionId(), m.getMessage(), m.getResponse(), m.getTimestamp().toString());
+            lines.append(objectMapper.writeValueAsString(entry)).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Replaces the journal with the turns that are still queued. The copy is
+     * written and synced without the lock, which is only taken to add the turns
+     * offered meanwhile and swap the file in. Called with the flush lock held.
+     */
+    private void rewriteJournal() {
+        List<ChatMessage> snapshot;
+        synchronized (lock) {
+            if (queue.isEmpty()) {
+                try {
+                    journalChannel.truncate(0);
+                    // Everything journaled so far is in the database
+                    syncedCount = journaledCount;
+                } catch (IOException e) {
+                    log.warn("Could not trim chat history journal {}", journal, e);
+                }
+                return;
+            }
+            snapshot = new ArrayList<>(queue);
+        }
+
+        Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            appendTo(channel, snapshot);
+            if (journalFsync) {
+                channel.force(false);
+            }
+            synchronized (lock) {
+                // Only flushes take turns off the queue, so it has just grown at the end
+                List<ChatMessage> offered = new ArrayList<>(queue).subList(snapshot.size(), queue.size());
+                appendTo(channel, offered);
+                Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                journalChannel.close();
+                // The channel writes at its end, so it carries on as the journal
+                journalChannel = channel;
+                syncedCount = journaledCount - offered.size();
+            }
+        } catch (IOException e) {
+            // Stored turns left in the journal are skipped when it is replayed
+            log.warn("Could not trim chat history journal {}", journal, e);
+            if (channel != null && channel != journalChannel) {
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+        }
+    }
+
+    private List<ChatMessage> readJournal() throws IOException {
+        List<ChatMessage> messages = new ArrayList<>();
+        if (!Files.exists(journal)) {
+            return messages;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    JournalEntry entry = objectMapper.readValue(line, JournalEntry.class);
+                    messages.add(new ChatMessage(null, entry.sessionId(), entry.message(), entry.response(),
+                            LocalDateTime.parse(entry.timestamp())));
+                } catch (IOException | RuntimeException e) {
+                    // Most likely the last line, cut short by the crash
+                    log.warn("Skipping unreadable chat history journal entry: {}", e.getMessage());
+                }
+            }
+        }
+        return messages;
+    }
+
+    private static void copyMatching(Collection<ChatMessage> messages, String sessionId, List<ChatMessage> into) {
+        for (ChatMessage m : messages) {
+            if (m.getSessionId().equals(sessionId)) {
+                into.add(new ChatMessage(m.getId(), m.getSessionId(), m.getMessage(), m.getResponse(), m.getTimestamp()));
+            }
+        }
+    }
+
+    private record JournalEntry(String sessionId, String message, String response, String timestamp) {
+    }
+}
@@ -1,13 +1,25 @@
 package com.ragdemo.service;
 
+import com.ragdemo.dto.ChatHistoryEntry;
+import com.ragdemo.dto.ChatHistoryPage;
 import com.ragdemo.entity.ChatMessage;
 import com.ragdemo.repository.ChatMessageRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 @Service
 @RequiredArgsConstructor
@@ -16,35 +28,125 @@ public class ChatService {
 
     private final ChatMessageRepository chatMessageRepository;
     private final RagService ragService;
+    private final ChatHistoryWriter chatHistoryWriter;
+
+    @Value("${chat.history.max-page-size:200}")
+    private int maxPageSize;
 
     public String generateResponse(String userMessage, String sessionId) {
         // Generate response using RAG
         String response = ragService.generateResponse(userMessage, sessionId);
 
-        // Save to chat history
-        ChatMessage chatMessage = new ChatMessage();
-        chatMessage.setSessionId(sessionId);
-        chatMessage.setMessage(userMessage);
-        chatMessage.setResponse(response);
-        chatMessageRepository.save(chatMessage);
+        // Save to chat history; a turn the full queue drops is logged and counted there
+        chatHistoryWriter.offer(sessionId, userMessage, response);
 
         return response;
     }
 
     public List<ChatMessage> getChatHistory(String sessionId) {
-        return chatMessageRepository.findBySessionIdOrderByTimestampAsc(sessionId);
+        // Taken before the query so a flush in between cannot hide a turn
+        List<ChatMessage> pending = chatHistoryWriter.pendingMessages(sessionId);
+        List<ChatMessage> history = new ArrayList<>(chatMessageRepository.findBySessionIdOrderByTimestampAsc(sessionId));
+
+        // Add turns that are still waiting in the write-behind queue
+        Set<LocalDateTime> stored = new HashSet<>();
+        history.forEach(m -> stored.add(m.getTimestamp()));
+        boolean added = false;
+        for (ChatMessage m : pending) {
+            if (!stored.contains(m.getTimestamp())) {
+                history.add(m);
+                added = true;
+            }
+        }
+        if (added) {
+            history.sort(Comparator.comparing(ChatMessage::getTimestamp));
+        }
+        return history;
+    }
+
+    /**
+     * Returns up to {@code limit} turns following {@code cursor} (from the start
+     * when it is null), oldest first. Turns still in the write-behind queue are
+     * merged in by timestamp, so a page never holds more than {@code limit} turns.
+     *
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public ChatHistoryPage getChatHistoryPage(String sessionId, String cursor, int limit) {
+        int size = Math.max(1, Math.min(limit, maxPageSize));
+        HistoryCursor after = cursor == null || cursor.isBlank() ? null : HistoryCursor.decode(cursor);
+
+        // Taken before the query so a flush in between cannot hide a turn
+        List<ChatMessage> pending = chatHistoryWriter.pendingMessages(sessionId);
+        // One extra row tells whether another page follows
+        List<ChatHistoryEntry> rows = after == null
+                ? chatMessageRepository.findHistory(sessionId, Limit.of(size + 1))
+                : chatMessageRepository.findHistoryAfter(sessionId, after.timestamp(), after.id(), Limit.of(size + 1));
+
+        List<ChatHistoryEntry> merged = new ArrayList<>(rows);
+        Set<LocalDateTime> stored = new HashSet<>();
+        rows.forEach(e -> stored.add(e.getTimestamp()));
+        for (ChatMessage m : pending) {
+            if (!stored.contains(m.getTimestamp()) && (after == null || m.getTimestamp().isAfter(after.timestamp()))) {
+                // Not inserted yet, so it has no id; it sorts after stored turns of the same timestamp
+                merged.add(new ChatHistoryEntry(null, m.getMessage(), m.getResponse(), m.getTimestamp()));
+            }
+        }
+        merged.sort(Comparator.comparing(ChatHistoryEntry::getTimestamp)
+                .thenComparing(ChatHistoryEntry::getId, Comparator.nullsLast(Comparator.naturalOrder())));
+
+        if (merged.size() <= size) {
+            return new ChatHistoryPage(merged, null);
+        }
+        List<ChatHistoryEntry> page = new ArrayList<>(merged.subList(0, size));
+        ChatHistoryEntry last = page.get(size - 1);
+        // A queued turn gets its id on insert, past every stored turn of its timestamp
+        long lastId = last.getId() != null ? last.getId() : Long.MAX_VALUE;
+        return new ChatHistoryPage(page, new HistoryCursor(last.getTimestamp(), lastId).encode());
+    }
+
+    /**
+     * Walks the whole history of a session one page at a time, so memory use does
+     * not grow with the length of the session.
+     */
+    public void forEachHistoryPage(String sessionId, Consumer<List<ChatHistoryEntry>> action) {
+        String cursor = null;
+        do {
+            ChatHistoryPage page = getChatHistoryPage(sessionId, cursor, maxPageSize);
+            action.accept(page.getMessages());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
     }
 
     public String createNewSession() {
         return UUID.randomUUID().toString();
     }
 
+    /**
+     * Queues a turn for the history without waiting; see {@link ChatHistoryWriter#offer}.
+     */
     public void saveMessage(String sessionId, String message, String response) {
-        ChatMessage chatMessage = new ChatMessage();
-        chatMessage.setSessionId(sessionId);
-        chatMessage.setMessage(message);
-        chatMessage.setResponse(response);
-        chatMessageRepository.save(chatMessage);
+        chatHistoryWriter.offer(sessionId, message, response);
     }
-}
 
+    /**
+     * Position after the last turn of a page, handed to clients as an opaque string.
+     */
+    private record HistoryCursor(LocalDateTime timestamp, long id) {
+
+        String encode() {
+            String value = timestamp + "|" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static HistoryCursor decode(String cursor) {
+            try {
+                String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int separator = value.indexOf('|');
+                return new HistoryCursor(LocalDateTime.parse(value.substring(0, separator)),
+                        Long.parseLong(value.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid history cursor: " + cursor, e);
+            }
+        }
+    }
+}
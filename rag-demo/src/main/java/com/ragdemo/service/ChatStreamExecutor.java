@@ -0,0 +1,148 @@
+package com.ragdemo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs chat streams on their own executor instead of the JVM-wide common pool,
+ * and caps how many streams may be in flight at once.
+ * <p>
+ * {@code chat.streaming.mode=platform} uses a bounded pool with a bounded queue;
+ * {@code virtual} starts a virtual thread per stream when running on Java 21+
+ * and falls back to the platform pool otherwise. Either way a stream must hold
+ * a {@link StreamPermit} from admission until its response is finished.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ChatStreamExecutor {
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${chat.streaming.mode:platform}")
+    private String mode;
+
+    @Value("${chat.streaming.max-concurrent:64}")
+    private int maxConcurrentStreams;
+
+    @Value("${chat.streaming.pool-size:8}")
+    private int poolSize;
+
+    @Value("${chat.streaming.queue-capacity:32}")
+    private int queueCapacity;
+
+    @Value("${chat.streaming.retry-after-seconds:5}")
+    private int retryAfterSeconds;
+
+    private Semaphore admission;
+    private ExecutorService executor;
+    private ThreadPoolExecutor platformPool;
+    private Counter rejected;
+
+    @PostConstruct
+    void init() {
+        admission = new Semaphore(maxConcurrentStreams);
+        executor = "virtual".equalsIgnoreCase(mode) ? virtualThreadExecutor() : null;
+        if (executor == null) {
+            platformPool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("chat-stream-"));
+            executor = platformPool;
+        }
+
+        Gauge.builder("rag.chat.streams.active", admission, a -> maxConcurrentStreams - a.availablePermits())
+                .register(meterRegistry);
+        Gauge.builder("rag.chat.streams.queued", this, e -> e.platformPool == null ? 0 : e.platformPool.getQueue().size())
+                .register(meterRegistry);
+        rejected = Counter.builder("rag.chat.streams.rejected").register(meterRegistry);
+
+        log.info("Chat streaming executor ready ({} threads, max {} concurrent streams)",
+                platformPool == null ? "virtual" : "pool of " + poolSize + " platform", maxConcurrentStreams);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Reserves a slot for a new stream, or returns empty when the server is at capacity.
+     */
+    public Optional<StreamPermit> tryAdmit() {
+        if (!admission.tryAcquire()) {
+            rejected.increment();
+            return Optional.empty();
+        }
+        return Optional.of(new StreamPermit());
+    }
+
+    /**
+     * Runs the blocking part of a stream. The permit is released here if the task
+     * cannot be queued; otherwise the caller releases it when the stream ends.
+     *
+     * @throws RejectedExecutionException if the pool's queue is full
+     */
+    public void execute(StreamPermit permit, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            permit.release();
+            throw e;
+        }
+    }
+
+    private ExecutorService virtualThreadExecutor() {
+        if (Runtime.version().feature() < 21) {
+            log.warn("Virtual thread streaming needs Java 21+, running on {}; using the platform pool",
+                    Runtime.version());
+            return null;
+        }
+        try {
+            // Looked up reflectively so the application still compiles for Java 17
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Could not create virtual thread executor; using the platform pool", e);
+            return null;
+        }
+    }
+
+    /**
+     * A reserved stream slot. Releasing it more than once has no effect, so it can
+     * be released from every completion path of a stream.
+     */
+    public final class StreamPermit {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private StreamPermit() {
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                admission.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.ragdemo.service;
+
+import com.ragdemo.vectorstore.EmbeddingStoreFactory;
+import com.ragdemo.vectorstore.LexicalIndex;
+import com.ragdemo.vectorstore.PersistentStore;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The document collections retrieval can be routed to, each with its own
+ * embedding store and lexical index. The default collection
+ * ({@code chroma.collection-name}) uses the application's store beans; any
+ * other collection is opened on first use with the configured store type and
+ * its lexical index is rebuilt from the segment index.
+ * <p>
+ * Each index generation stores a collection under its own physical name. When a
+ * rebuilt generation is activated, the previous one stays reachable so requests
+ * that started before the switch can finish on it.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CollectionRegistry implements PersistentStore {
+
+    // Chroma's rules for collection names, which also make safe file names, with
+    // room left for the generation suffix
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]{1,52}[A-Za-z0-9]");
+    private static final int REBUILD_PAGE_SIZE = 1000;
+
+    private final EmbeddingStore<TextSegment> embeddingStore;
+    private final LexicalIndex lexicalIndex;
+    private final EmbeddingStoreFactory storeFactory;
+    private final SegmentIndexService segmentIndexService;
+    private final ActiveIndex activeIndex;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${chroma.collection-name:rag-documents}")
+    private String defaultCollection;
+
+    @Value("${rag.collections.max-open:32}")
+    private int maxOpen;
+
+    @Value("${rag.retrieval.hybrid:true}")
+    private boolean hybrid;
+
+    @Value("${rag.retrieval.bm25.k1:1.2}")
+    private float k1;
+
+    @Value("${rag.retrieval.bm25.b:0.75}")
+    private float b;
+
+    private volatile Snapshot current;
+    private volatile Snapshot previous;
+
+    /**
+     * A collection's embedding store and the lexical index over the same segments.
+     */
+    public record CollectionIndex(String name, EmbeddingStore<TextSegment> embeddingStore, LexicalIndex lexicalIndex) {
+    }
+
+    private record Snapshot(ActiveIndex.Generation generation, Map<String, CollectionIndex> collections) {
+    }
+
+    @PostConstruct
+    void init() {
+        ActiveIndex.Generation generation = activeIndex.current();
+        CollectionIndex collection = new CollectionIndex(defaultCollection, embeddingStore, lexicalIndex);
+        rebuildLexicalIndex(collection, generation.modelName());
+        current = new Snapshot(generation, new ConcurrentHashMap<>(Map.of(defaultCollection, collection)));
+
+        Gauge.builder("rag.collections.open", this, registry -> registry.current.collections().size())
+                .description("Collections with an open embedding store")
+                .register(meterRegistry);
+        Gauge.builder("rag.retrieval.lexical.documents", this, registry -> registry.current.collections().values()
+                        .stream().mapToInt(index -> index.lexicalIndex().size()).sum())
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void close() throws IOException {
+        persist();
+    }
+
+    public String defaultCollection() {
+        return defaultCollection;
+    }
+
+    /**
+     * Returns {@code name} if it is a valid collection name.
+     *
+     * @throws IllegalArgumentException otherwise
+     */
+    public static String validateName(String name) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid collection name: " + name);
+        }
+        return name;
+    }
+
+    /**
+     * Name of the store that holds {@code collection} in the given index generation.
+     */
+    public static String physicalName(String collection, int generation) {
+        return generation == 0 ? collection : collection + "-v" + generation;
+    }
+
+    /**
+     * Returns the named collection of the active generation, opening (and creating) it if needed.
+     *
+     * @throws IllegalArgumentException if the name is invalid or too many collections are open
+     */
+    public CollectionIndex get(String name) {
+        Snapshot snapshot = current;
+        CollectionIndex collection = snapshot.collections().get(name);
+        if (collection != null) {
+            return collection;
+        }
+        validateName(name);
+        return snapshot.collections().computeIfAbsent(name, n -> {
+            if (snapshot.collections().size() >= maxOpen) {
+                throw new IllegalArgumentException("Too many collections open (" + maxOpen + ")");
+            }
+            CollectionIndex opened = open(n, snapshot.generation());
+            log.info("Opened collection {}", n);
+            return opened;
+        });
+    }
+
+    /**
+     * Returns the named collection of {@code generation}, which may have been
+     * replaced while the caller's request was running.
+     */
+    public CollectionIndex get(String name, int generation) {
+        Snapshot before = previous;
+        if (before != null && before.generation().number() == generation
+                && current.generation().number() != generation) {
+            CollectionIndex collection = before.collections().get(name);
+            if (collection == null) {
+                throw new IllegalStateException("Collection " + name + " is not open in generation " + generation);
+            }
+            return collection;
+        }
+        return get(name);
+    }
+
+    /**
+     * Opens the stores of {@code name} for {@code generation} without making them
+     * visible to queries; the lexical index holds what is recorded as stored there.
+     */
+    public CollectionIndex open(String name, ActiveIndex.Generation generation) {
+        String physicalName = physicalName(name, generation.number());
+        try {
+            CollectionIndex collection = new CollectionIndex(name, storeFactory.open(physicalName),
+                    new LexicalIndex(k1, b));
+            rebuildLexicalIndex(collection, generation.modelName());
+            return collection;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open collection " + physicalName, e);
+        }
+    }
+
+    /**
+     * Makes {@code collections} the collections of {@code generation}, which
+     * becomes the active one. Collections not included are opened on first use.
+     */
+    public void activate(ActiveIndex.Generation generation, Map<String, CollectionIndex> collections) {
+        previous = current;
+        current = new Snapshot(generation, new ConcurrentHashMap<>(collections));
+    }
+
+    /**
+     * Brings the files of the collections' stores up to date, apart from the
+     * default store bean, which is persisted on its own.
+     */
+    @Override
+    public void persist() throws IOException {
+        List<CollectionIndex> open = new ArrayList<>(current.collections().values());
+        Snapshot before = previous;
+        if (before != null) {
+            open.addAll(before.collections().values());
+        }
+        for (CollectionIndex collection : open) {
+            if (collection.embeddingStore() != embeddingStore
+                    && collection.embeddingStore() instanceof PersistentStore store) {
+                store.persist();
+            }
+        }
+    }
+
+    private void rebuildLexicalIndex(CollectionIndex collection, String modelName) {
+        if (!hybrid) {
+            return;
+        }
+        long start = System.nanoTime();
+        LexicalIndex index = collection.lexicalIndex();
+        segmentIndexService.forEachStoredText(collection.name(), modelName, REBUILD_PAGE_SIZE, page -> index.addAll(
+                page.stream().map(row -> row.getEmbeddingId()).toList(),
+                page.stream().map(row -> TextSegment.from(row.getText())).toList()));
+        if (index.size() > 0) {
+            log.info("Rebuilt lexical index of {} with {} segments in {} ms",
+                    collection.name(), index.size(), (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.ragdemo.service;
+
+import com.ragdemo.entity.ChatSession;
+import com.ragdemo.repository.ChatSessionRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps each chat session to the collections it retrieves from, for example the
+ * document sets of one tenant. Sessions that were never assigned any use
+ * {@code rag.collections.default}. Mappings are kept in the database and the
+ * recently used ones in memory.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CollectionRouter {
+
+    private final ChatSessionRepository chatSessionRepository;
+    private final CollectionRegistry collectionRegistry;
+
+    @Value("${rag.collections.default:}")
+    private String defaultCollectionNames;
+
+    @Value("${rag.collections.max-per-session:8}")
+    private int maxPerSession;
+
+    @Value("${rag.collections.session-cache-size:10000}")
+    private int sessionCacheSize;
+
+    private List<String> defaultCollections;
+    private Map<String, List<String>> sessions;
+
+    @PostConstruct
+    void init() {
+        defaultCollections = defaultCollectionNames.isBlank()
+                ? List.of(collectionRegistry.defaultCollection())
+                : normalize(Arrays.asList(defaultCollectionNames.split(",")));
+        sessions = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                return size() > sessionCacheSize;
+            }
+        });
+        log.info("Sessions retrieve from {} unless assigned other collections", defaultCollections);
+    }
+
+    public List<String> getDefaultCollections() {
+        return defaultCollections;
+    }
+
+    /**
+     * The collections of the session, sorted by name.
+     */
+    public List<String> collectionsFor(String sessionId) {
+        if (sessionId == null) {
+            return defaultCollections;
+        }
+        List<String> collections = sessions.get(sessionId);
+        if (collections == null) {
+            collections = chatSessionRepository.findById(sessionId)
+                    .map(session -> List.of(session.getCollections().split(",")))
+                    .orElse(defaultCollections);
+            sessions.put(sessionId, collections);
+        }
+        return collections;
+    }
+
+    /**
+     * Routes the session to {@code collections} from now on.
+     *
+     * @throws IllegalArgumentException if a name is invalid or there are too many
+     */
+    public List<String> assign(String sessionId, List<String> collections) {
+        List<String> normalized = normalize(collections);
+        ChatSession session = chatSessionRepository.findById(sessionId).orElseGet(ChatSession::new);
+        session.setSessionId(sessionId);
+        session.setCollections(String.join(",", normalized));
+        chatSessionRepository.save(session);
+        sessions.put(sessionId, normalized);
+        log.info("Session {} retrieves from {}", sessionId, normalized);
+        return normalized;
+    }
+
+    private List<String> normalize(List<String> collections) {
+        List<String> normalized = collections.stream()
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .map(CollectionRegistry::validateName)
+                .distinct()
+                .sorted()
+                .toList();
+        if (normalized.isEmpty()) {
+            return defaultCollections;
+        }
+        if (normalized.size() > maxPerSession) {
+            throw new IllegalArgumentException("At most " + maxPerSession + " collections per session");
+        }
+        return normalized;
+    }
+}
@@ -0,0 +1,23 @@
+package com.ragdemo.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic counter bumped whenever new content lands in the vector store.
+ * Anything derived from retrieval results can compare versions to know it is stale.
+ */
+@Component
+public class CorpusVersion {
+
+    private final AtomicLong version = new AtomicLong();
+
+    public long current() {
+        return version.get();
+    }
+
+    public long increment() {
+        return version.incrementAndGet();
+    }
+}
@@ -0,0 +1,75 @@
+package com.ragdemo.service;
+
+import com.ragdemo.repository.SegmentEmbeddingRepository;
+import dev.langchain4j.data.segment.TextSegment;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fills the default Chroma collection again from the segment index after
+ * startup found it missing or had to recreate it. Only segments flagged as held
+ * by the default collection go through the ingestion pipeline, so segments of
+ * other collections stay out of it and cached vectors are reused. The flags are
+ * cleared once everything is stored; an interrupted refill resumes at the next
+ * startup. The application serves requests meanwhile, with results filling in
+ * as batches are stored.
+ */
+@Service
+@ConditionalOnProperty(name = "vector-store.type", havingValue = "chroma", matchIfMissing = true)
+@RequiredArgsConstructor
+@Slf4j
+public class DefaultCollectionReindexer {
+
+    private static final int PAGE_SIZE = 500;
+
+    private final SegmentIndexService segmentIndexService;
+    private final EmbeddingIngestionPipeline ingestionPipeline;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("reindex-"));
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void reindexIfNeeded() {
+        // Startup flags what the default collection lost; flags left by an interrupted refill remain
+        if (!segmentIndexService.hasPendingRefill()) {
+            return;
+        }
+        executor.execute(this::reindex);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void reindex() {
+        log.info("Refilling collection from the segment index");
+        EmbeddingIngestionPipeline.Ingestion ingestion = ingestionPipeline.begin("segment index", IngestionProgress.NONE);
+        try {
+            segmentIndexService.forEachRefillText(PAGE_SIZE, page -> {
+                try {
+                    for (SegmentEmbeddingRepository.StoredText row : page) {
+                        ingestion.add(TextSegment.from(row.getText()));
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            // Logs its own summary
+            ingestion.finish();
+            segmentIndexService.finishRefill();
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Refilling the collection failed; re-upload documents to restore it", e);
+        }
+    }
+}
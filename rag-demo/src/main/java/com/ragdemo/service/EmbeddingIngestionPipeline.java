@@ -0,0 +1,347 @@
+package com.ragdemo.service;
+
+import com.ragdemo.entity.SegmentEmbedding;
+import com.ragdemo.service.CollectionRegistry.CollectionIndex;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Groups text segments into batches and embeds/stores them on a bounded pool.
+ * Producers block once too many batches are in flight, so a large document
+ * never queues more work than the embedding backend can absorb.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class EmbeddingIngestionPipeline {
+
+    private final ActiveIndex activeIndex;
+    private final CollectionRegistry collectionRegistry;
+    private final SegmentIndexService segmentIndexService;
+    private final CorpusVersion corpusVersion;
+    private final MeterRegistry meterRegistry;
+    private final ObservationRegistry observationRegistry;
+    private final OllamaScheduler ollamaScheduler;
+
+    @Value("${ingestion.batch-size:32}")
+    private int batchSize;
+
+    @Value("${ingestion.concurrency:4}")
+    private int concurrency;
+
+    @Value("${ingestion.max-in-flight-batches:8}")
+    private int maxInFlightBatches;
+
+    private ExecutorService executor;
+    private Semaphore inFlightPermits;
+    private final AtomicInteger inFlightBatches = new AtomicInteger();
+
+    private Counter segmentCounter;
+    private Counter reusedCounter;
+
+    @PostConstruct
+    void init() {
+        executor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new CustomizableThreadFactory("ingest-"));
+        inFlightPermits = new Semaphore(maxInFlightBatches);
+
+        segmentCounter = Counter.builder("rag.ingestion.segments")
+                .description("Segments embedded by the embedding model during ingestion")
+                .register(meterRegistry);
+        reusedCounter = Counter.builder("rag.ingestion.segments.reused")
+                .description("Segments whose vector was reused from the segment index")
+                .register(meterRegistry);
+        Gauge.builder("rag.ingestion.batches.in-flight", inFlightBatches, AtomicInteger::get)
+                .register(meterRegistry);
+
+        log.info("Ingestion pipeline ready (batch size {}, concurrency {}, max in-flight batches {})",
+                batchSize, concurrency, maxInFlightBatches);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Starts a new ingestion. Segments are handed over with {@link Ingestion#add}
+     * and {@link Ingestion#finish} waits for every batch to be stored.
+     */
+    public Ingestion begin(String source) {
+        return begin(source, IngestionProgress.NONE);
+    }
+
+    public Ingestion begin(String source, IngestionProgress progress) {
+        return begin(source, progress, collectionRegistry.defaultCollection());
+    }
+
+    /**
+     * Starts a new ingestion into {@code collection}.
+     *
+     * @throws IllegalArgumentException if the collection name is invalid
+     */
+    public Ingestion begin(String source, IngestionProgress progress, String collection) {
+        return new Ingestion(source, progress, collectionRegistry.get(collection).name());
+    }
+
+    /**
+     * An observation of one stage of ingesting a document, recorded as a
+     * {@code rag.ingestion.stage} timer and a tracing span under the current observation.
+     */
+    static Observation stageObservation(String stage, ObservationRegistry observationRegistry) {
+        return Observation.createNotStarted("rag.ingestion.stage", observationRegistry)
+                .contextualName("ingest " + stage)
+                .lowCardinalityKeyValue("stage", stage)
+                .parentObservation(observationRegistry.getCurrentObservation());
+    }
+
+    private BatchResult storeBatch(List<HashedSegment> batch, String collectionName, Observation parent) {
+        // Batches run on the pool, so the document's observation is passed along explicitly
+        return Observation.createNotStarted("rag.ingestion.batch", observationRegistry)
+                .contextualName("ingest batch")
+                .parentObservation(parent)
+                .observe(() -> {
+                    while (true) {
+                        // Embedding may wait long for Ollama, so it happens before the switch lock is taken
+                        ActiveIndex.Generation generation = activeIndex.current();
+                        EmbeddedBatch embedded = ollamaScheduler.inLane(OllamaScheduler.Lane.INGESTION,
+                                () -> embedBatch(batch, generation));
+
+                        // A batch goes entirely into one index generation; a switch waits for it
+                        activeIndex.ingestionLock().lock();
+                        try {
+                            if (activeIndex.current() == generation) {
+                                return storeBatch(batch, embedded, generation, collectionRegistry.get(collectionName));
+                            }
+                        } finally {
+                            activeIndex.ingestionLock().unlock();
+                        }
+                        log.info("Index switched to {} while embedding a batch of {}, embedding it again",
+                                activeIndex.modelName(), collectionName);
+                    }
+                });
+    }
+
+    private EmbeddedBatch embedBatch(List<HashedSegment> batch, ActiveIndex.Generation generation) {
+        Map<String, SegmentEmbedding> indexed = segmentIndexService.lookup(
+                generation.modelName(), batch.stream().map(HashedSegment::hash).toList());
+
+        // Only segments the index has never seen under this model go to the embedding model
+        List<HashedSegment> toEmbed = batch.stream()
+                .filter(segment -> !indexed.containsKey(segment.hash()))
+                .toList();
+        List<Embedding> newEmbeddings = toEmbed.isEmpty()
+                ? List.of()
+                : stageObservation("embed", observationRegistry).observe(() -> generation.embeddingModel()
+                        .embedAll(toEmbed.stream().map(HashedSegment::segment).toList()).content());
+        return new EmbeddedBatch(indexed, toEmbed.size(), newEmbeddings);
+    }
+
+    private BatchResult storeBatch(List<HashedSegment> batch, EmbeddedBatch embedded,
+                                   ActiveIndex.Generation generation, CollectionIndex collection) {
+        List<String> hashes = batch.stream().map(HashedSegment::hash).toList();
+        segmentIndexService.withHashesLocked(hashes, () -> {
+            store(batch, embedded, generation, collection);
+            return null;
+        });
+
+        segmentCounter.increment(embedded.embeddedCount());
+        reusedCounter.increment(batch.size() - embedded.embeddedCount());
+        return new BatchResult(batch.size(), embedded.embeddedCount());
+    }
+
+    /**
+     * Adds what {@code collection} does not hold yet and records it. Called with the
+     * batch's hashes locked; the index is read again, as another upload of the same
+     * content may have stored it since the batch was embedded.
+     */
+    private void store(List<HashedSegment> batch, EmbeddedBatch embedded, ActiveIndex.Generation generation,
+                       CollectionIndex collection) {
+        String modelName = generation.modelName();
+        Map<String, SegmentEmbedding> indexed = segmentIndexService.lookup(modelName,
+                batch.stream().map(HashedSegment::hash).toList());
+        List<Embedding> newEmbeddings = embedded.newEmbeddings();
+        Set<String> stored = segmentIndexService.storedHashes(collection.name(), modelName, indexed.values());
+
+        // Reused vectors are only added when the collection does not hold them yet
+        List<SegmentEmbedding> entries = new ArrayList<>();
+        List<Embedding> storeEmbeddings = new ArrayList<>();
+        List<TextSegment> storeSegments = new ArrayList<>();
+        int nextEmbedding = 0;
+        for (HashedSegment segment : batch) {
+            // The vectors embedded for this batch follow the segments it did not find indexed
+            Embedding embedding = embedded.indexed().containsKey(segment.hash())
+                    ? null
+                    : newEmbeddings.get(nextEmbedding++);
+            SegmentEmbedding entry = indexed.get(segment.hash());
+            if (entry == null) {
+                entry = segmentIndexService.newEntry(modelName, segment.hash(), segment.segment(), embedding);
+                storeEmbeddings.add(embedding);
+            } else if (!stored.contains(segment.hash())) {
+                storeEmbeddings.add(segmentIndexService.toEmbedding(entry));
+            } else {
+                continue;
+            }
+            storeSegments.add(segment.segment());
+            entries.add(entry);
+        }
+
+        if (!storeSegments.isEmpty()) {
+            stageObservation("store", observationRegistry).observe(() -> {
+                List<String> ids = collection.embeddingStore().addAll(storeEmbeddings, storeSegments);
+                segmentIndexService.recordStored(collection.name(), modelName, entries, ids);
+                collection.lexicalIndex().addAll(ids, storeSegments);
+            });
+            corpusVersion.increment();
+        }
+    }
+
+    private record HashedSegment(String hash, TextSegment segment) {
+    }
+
+    /**
+     * Vectors for a batch under one model: those found in the segment index and, in
+     * batch order, those of the {@code embeddedCount} segments that were not.
+     */
+    private record EmbeddedBatch(Map<String, SegmentEmbedding> indexed, int embeddedCount,
+                                 List<Embedding> newEmbeddings) {
+    }
+
+    private record BatchResult(int segments, int embedded) {
+    }
+
+    public final class Ingestion {
+
+        private final String source;
+        private final IngestionProgress progress;
+        private final String collection;
+        private final Observation parentObservation;
+        private final long startNanos = System.nanoTime();
+        private final List<CompletableFuture<BatchResult>> batches = new ArrayList<>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final Set<String> seenHashes = new HashSet<>();
+        private List<HashedSegment> pending = new ArrayList<>();
+        private int duplicates;
+
+        private Ingestion(String source, IngestionProgress progress, String collection) {
+            this.source = source;
+            this.progress = progress;
+            this.collection = collection;
+            this.parentObservation = observationRegistry.getCurrentObservation();
+        }
+
+        public void add(TextSegment segment) throws IOException {
+            progress.segmentsQueued(1);
+
+            // Repeated headers and footers are common in manuals; embed them once per upload
+            String hash = segmentIndexService.hash(segment);
+            if (!seenHashes.add(hash)) {
+                duplicates++;
+                progress.segmentsReused(1);
+                progress.segmentsCompleted(1);
+                return;
+            }
+
+            pending.add(new HashedSegment(hash, segment));
+            if (pending.size() >= batchSize) {
+                submitPending();
+            }
+        }
+
+        public IngestionReport finish() throws IOException {
+            if (!pending.isEmpty()) {
+                submitPending();
+            }
+
+            int segments = duplicates;
+            int embedded = 0;
+            for (CompletableFuture<BatchResult> batch : batches) {
+                try {
+                    BatchResult result = batch.join();
+                    segments += result.segments();
+                    embedded += result.embedded();
+                } catch (CompletionException e) {
+                    failure.compareAndSet(null, e.getCause());
+                }
+            }
+            throwIfFailed();
+
+            double seconds = Math.max((System.nanoTime() - startNanos) / 1_000_000_000.0, 0.001);
+            log.info("Processed {} segments from {} into {} in {} batches ({} newly embedded, {} reused, {} segments/s)",
+                    segments, source, collection, batches.size(), embedded, segments - embedded,
+                    String.format("%.1f", segments / seconds));
+            return new IngestionReport(segments, embedded, segments - embedded);
+        }
+
+        private void submitPending() throws IOException {
+            throwIfFailed();
+            List<HashedSegment> batch = pending;
+            pending = new ArrayList<>(batchSize);
+
+            // Backpressure: wait here until a batch slot frees up
+            try {
+                inFlightPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to submit batch for " + source);
+            }
+            inFlightBatches.incrementAndGet();
+
+            CompletableFuture<BatchResult> future;
+            try {
+                future = CompletableFuture.supplyAsync(() -> storeBatch(batch, collection, parentObservation), executor);
+            } catch (RuntimeException e) {
+                inFlightBatches.decrementAndGet();
+                inFlightPermits.release();
+                throw e;
+            }
+            batches.add(future.whenComplete((result, error) -> {
+                inFlightBatches.decrementAndGet();
+                inFlightPermits.release();
+                if (error != null) {
+                    failure.compareAndSet(null, error instanceof CompletionException ? error.getCause() : error);
+                } else {
+                    progress.segmentsEmbedded(result.embedded());
+                    progress.segmentsReused(result.segments() - result.embedded());
+                    progress.segmentsCompleted(result.segments());
+                }
+            }));
+        }
+
+        private void throwIfFailed() throws IOException {
+            Throwable error = failure.get();
+            if (error != null) {
+                throw new IOException("Failed to store segments for " + source + ": " + error.getMessage(), error);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.ragdemo.service;
+
+import dev.langchain4j.model.embedding.EmbeddingModel;
+
+/**
+ * Creates the client for an embedding model by name, so the model in use can
+ * change at runtime when the index is rebuilt for another one.
+ */
+@FunctionalInterface
+public interface EmbeddingModelFactory {
+
+    EmbeddingModel create(String modelName);
+}
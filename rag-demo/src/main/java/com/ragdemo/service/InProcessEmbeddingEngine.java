@@ -0,0 +1,278 @@
+package com.ragdemo.service;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all-MiniLM-L6-v2 inside the JVM with the ONNX model and tokenizer bundled in
+ * {@code langchain4j-embeddings-all-minilm-l6-v2}, selected with
+ * {@code embedding.engine=onnx}.
+ * <p>
+ * Texts from all callers go into one queue. Each worker thread takes whatever is
+ * waiting, up to {@code embedding.onnx.max-batch-size}, and embeds it in a single
+ * inference call; if the queue holds fewer texts it waits up to
+ * {@code embedding.onnx.max-wait-ms} for more. Concurrent queries thus share
+ * inference calls, and an ingestion batch is one call instead of one per segment.
+ */
+@Component
+@ConditionalOnProperty(name = "embedding.engine", havingValue = "onnx")
+@RequiredArgsConstructor
+@Slf4j
+public class InProcessEmbeddingEngine implements EmbeddingModel {
+
+    /**
+     * Name the segment index records for vectors of this model.
+     */
+    public static final String MODEL_NAME = "all-minilm-l6-v2";
+
+    private static final int DIMENSION = 384;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${embedding.onnx.threads:2}")
+    private int threads;
+
+    @Value("${embedding.onnx.intra-op-threads:2}")
+    private int intraOpThreads;
+
+    @Value("${embedding.onnx.max-batch-size:32}")
+    private int maxBatchSize;
+
+    @Value("${embedding.onnx.max-wait-ms:2}")
+    private long maxWaitMs;
+
+    @Value("${embedding.onnx.queue-capacity:1024}")
+    private int queueCapacity;
+
+    @Value("${embedding.onnx.max-length:256}")
+    private int maxLength;
+
+    private OrtEnvironment environment;
+    private OrtSession session;
+    private HuggingFaceTokenizer tokenizer;
+    private BlockingQueue<Request> queue;
+    private ExecutorService workers;
+    private volatile boolean running = true;
+
+    private DistributionSummary batchSizes;
+    private Timer inferenceTimer;
+
+    private record Request(String text, CompletableFuture<float[]> result) {
+    }
+
+    @PostConstruct
+    void init() throws OrtException, IOException {
+        environment = OrtEnvironment.getEnvironment();
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+             InputStream model = resource(MODEL_NAME + ".onnx");
+             InputStream tokenizerJson = resource(MODEL_NAME + "-tokenizer.json")) {
+            options.setIntraOpNumThreads(intraOpThreads);
+            session = environment.createSession(model.readAllBytes(), options);
+            // Padded to the longest text of each batch
+            Map<String, String> tokenizerOptions = new HashMap<>();
+            tokenizerOptions.put("padding", "true");
+            tokenizerOptions.put("truncation", "true");
+            tokenizerOptions.put("maxLength", String.valueOf(maxLength));
+            tokenizer = HuggingFaceTokenizer.newInstance(tokenizerJson, tokenizerOptions);
+        }
+
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        workers = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("embed-onnx-"));
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::work);
+        }
+
+        batchSizes = DistributionSummary.builder("rag.embedding.onnx.batch.size")
+                .description("Texts embedded per inference call")
+                .register(meterRegistry);
+        inferenceTimer = Timer.builder("rag.embedding.onnx.inference")
+                .description("Time of one inference call, including tokenization")
+                .register(meterRegistry);
+        Gauge.builder("rag.embedding.onnx.queue.size", queue, BlockingQueue::size)
+                .register(meterRegistry);
+        log.info("In-process embedding model {} ready ({} threads, batches of up to {})",
+                MODEL_NAME, threads, maxBatchSize);
+    }
+
+    @PreDestroy
+    void close() throws OrtException {
+        running = false;
+        workers.shutdownNow();
+        session.close();
+        tokenizer.close();
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+        List<CompletableFuture<float[]>> results = new ArrayList<>(segments.size());
+        try {
+            for (TextSegment segment : segments) {
+                CompletableFuture<float[]> result = new CompletableFuture<>();
+                // Blocks while the queue is full, which slows producers down to the model's pace
+                queue.put(new Request(segment.text(), result));
+                results.add(result);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing texts to embed", e);
+        }
+
+        List<Embedding> embeddings = new ArrayList<>(results.size());
+        try {
+            for (CompletableFuture<float[]> result : results) {
+                embeddings.add(Embedding.from(result.join()));
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+        return Response.from(embeddings);
+    }
+
+    @Override
+    public int dimension() {
+        return DIMENSION;
+    }
+
+    private void work() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - 1);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+                while (batch.size() < maxBatchSize) {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+                embedBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                batch.forEach(request -> request.result().cancel(false));
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void embedBatch(List<Request> batch) {
+        try {
+            float[][] vectors = inferenceTimer.recordCallable(() ->
+                    infer(batch.stream().map(Request::text).toList()));
+            batchSizes.record(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result().complete(vectors[i]);
+            }
+        } catch (Exception e) {
+            IllegalStateException failure = new IllegalStateException("In-process embedding failed", e);
+            batch.forEach(request -> request.result().completeExceptionally(failure));
+        }
+    }
+
+    /**
+     * Mean of the token vectors under the attention mask, normalized to unit length,
+     * as in the sentence-transformers model.
+     */
+    private float[][] infer(List<String> texts) throws OrtException {
+        Encoding[] encodings = tokenizer.batchEncode(texts);
+        long[][] inputIds = new long[encodings.length][];
+        long[][] attentionMask = new long[encodings.length][];
+        long[][] tokenTypeIds = new long[encodings.length][];
+        for (int i = 0; i < encodings.length; i++) {
+            inputIds[i] = encodings[i].getIds();
+            attentionMask[i] = encodings[i].getAttentionMask();
+            tokenTypeIds[i] = encodings[i].getTypeIds();
+        }
+
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put("input_ids", OnnxTensor.createTensor(environment, inputIds));
+            inputs.put("attention_mask", OnnxTensor.createTensor(environment, attentionMask));
+            inputs.put("token_type_ids", OnnxTensor.createTensor(environment, tokenTypeIds));
+            try (OrtSession.Result result = session.run(inputs)) {
+                float[][][] tokenVectors = (float[][][]) result.get(0).getValue();
+                float[][] vectors = new float[tokenVectors.length][];
+                for (int i = 0; i < tokenVectors.length; i++) {
+                    vectors[i] = meanPool(tokenVectors[i], attentionMask[i]);
+                }
+                return vectors;
+            }
+        } finally {
+            inputs.values().forEach(OnnxTensor::close);
+        }
+    }
+
+    private static float[] meanPool(float[][] tokenVectors, long[] mask) {
+        float[] pooled = new float[tokenVectors[0].length];
+        int tokens = 0;
+        for (int t = 0; t < tokenVectors.length; t++) {
+            if (mask[t] == 0) {
+                continue;
+            }
+            tokens++;
+            for (int d = 0; d < pooled.length; d++) {
+                pooled[d] += tokenVectors[t][d];
+            }
+        }
+        double norm = 0;
+        for (int d = 0; d < pooled.length; d++) {
+            pooled[d] /= Math.max(tokens, 1);
+            norm += pooled[d] * pooled[d];
+        }
+        float scale = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 1;
+        for (int d = 0; d < pooled.length; d++) {
+            pooled[d] *= scale;
+        }
+        return pooled;
+    }
+
+    private static InputStream resource(String name) throws IOException {
+        InputStream stream = InProcessEmbeddingEngine.class.getClassLoader().getResourceAsStream(name);
+        if (stream == null) {
+            throw new IOException(name + " not found on the classpath");
+        }
+        return stream;
+    }
+}
@@ -0,0 +1,473 @@
+package com.ragdemo.service;
+
+import com.ragdemo.dto.IngestionJobStatus;
+import com.ragdemo.dto.IngestionJobStatus.State;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.RandomAccessReadBufferedFile;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Runs PDF ingestion as background jobs on a small dedicated pool so uploads
+ * return immediately and never hold request threads during embedding.
+ * <p>
+ * A bulk job ingests several PDFs and ZIP archives of PDFs. Archive entries are
+ * spooled one after another to temp files, and every document is parsed on a
+ * shared parser pool. At most two documents per parser are spooled or queued at
+ * a time, so neither heap nor temp space grows with the size of the archive.
+ * Their segments all go through the ingestion pipeline's bounded batch queue and
+ * the Ollama ingestion lane, so parsing scales with cores while embedding stays
+ * within its limits.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class IngestionJobService {
+
+    private final PdfProcessingService pdfProcessingService;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${ingestion.jobs.max-concurrent:2}")
+    private int maxConcurrentJobs;
+
+    @Value("${ingestion.jobs.queue-capacity:20}")
+    private int queueCapacity;
+
+    @Value("${ingestion.jobs.retention-minutes:60}")
+    private long retentionMinutes;
+
+    // 0 uses one parser per core
+    @Value("${ingestion.bulk.parallelism:0}")
+    private int bulkParallelism;
+
+    @Value("${ingestion.bulk.max-entry-mb:100}")
+    private int maxEntryMb;
+
+    private final Map<String, IngestionJob> jobs = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor executor;
+    private ThreadPoolExecutor parserPool;
+    private Semaphore pendingDocuments;
+
+    private Counter documentsIngested;
+    private Counter documentsFailed;
+
+    private record Upload(String name, Path path, boolean archive) {
+    }
+
+    private interface DocumentSource {
+        RandomAccessRead open() throws IOException;
+    }
+
+    @PostConstruct
+    void init() {
+        executor = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("ingest-job-"));
+        Gauge.builder("rag.ingestion.jobs.queued", executor, e -> e.getQueue().size())
+                .register(meterRegistry);
+        Gauge.builder("rag.ingestion.jobs.running", executor, ThreadPoolExecutor::getActiveCount)
+                .register(meterRegistry);
+
+        int parallelism = bulkParallelism > 0 ? bulkParallelism : Runtime.getRuntime().availableProcessors();
+        // Documents of bulk jobs handed to the parsers: one being parsed and one waiting per parser
+        pendingDocuments = new Semaphore(parallelism * 2);
+        parserPool = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(parallelism * 2), new CustomizableThreadFactory("ingest-parse-"));
+        Gauge.builder("rag.ingestion.bulk.parsing", parserPool, ThreadPoolExecutor::getActiveCount)
+                .description("Documents of bulk jobs being parsed")
+                .register(meterRegistry);
+        documentsIngested = Counter.builder("rag.ingestion.documents").tag("outcome", "ingested")
+                .description("Documents ingested by jobs, by outcome")
+                .register(meterRegistry);
+        documentsFailed = Counter.builder("rag.ingestion.documents").tag("outcome", "failed")
+                .description("Documents ingested by jobs, by outcome")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+        parserPool.shutdownNow();
+    }
+
+    /**
+     * Whether {@code file} is taken as a ZIP archive of PDFs by {@link #submitBulk}.
+     */
+    public static boolean isArchive(MultipartFile file) {
+        return "application/zip".equals(file.getContentType())
+                || "application/x-zip-compressed".equals(file.getContentType())
+                || hasExtension(file, ".zip");
+    }
+
+    /**
+     * Whether {@code file} is taken as a PDF by {@link #submitBulk}.
+     */
+    public static boolean isPdf(MultipartFile file) {
+        return "application/pdf".equals(file.getContentType()) || hasExtension(file, ".pdf");
+    }
+
+    /**
+     * Copies the upload to a temp file (the multipart file is gone once the
+     * request ends) and queues it for ingestion.
+     *
+     * @throws RejectedExecutionException if the job queue is full
+     */
+    public IngestionJobStatus submit(MultipartFile file) throws IOException {
+        return submit(file, null);
+    }
+
+    /**
+     * Like {@link #submit(MultipartFile)}, ingesting into {@code collection}
+     * instead of the default collection when it is not null.
+     */
+    public IngestionJobStatus submit(MultipartFile file, String collection) throws IOException {
+        evictExpiredJobs();
+
+        Path tempFile = copyToTempFile(file);
+        IngestionJob job = new IngestionJob(UUID.randomUUID().toString(), file.getOriginalFilename(), collection);
+        job.documentsTotal.set(1);
+        jobs.put(job.id, job);
+        try {
+            executor.execute(() -> run(job, tempFile));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+
+        log.info("Queued ingestion job {} for {}", job.id, job.fileName);
+        return job.toStatus();
+    }
+
+    /**
+     * Copies the uploads to temp files and queues one job that ingests the PDFs
+     * among them and those inside the ZIP archives among them (see
+     * {@link #isArchive}), reporting their segments and outcomes together. A
+     * document that cannot be ingested is listed in the job's failures; the job
+     * only fails when no document could be ingested.
+     *
+     * @throws RejectedExecutionException if the job queue is full
+     */
+    public IngestionJobStatus submitBulk(List<MultipartFile> files, String collection) throws IOException {
+        evictExpiredJobs();
+
+        List<Upload> uploads = new ArrayList<>(files.size());
+        try {
+            for (MultipartFile file : files) {
+                uploads.add(new Upload(file.getOriginalFilename(), copyToTempFile(file), isArchive(file)));
+            }
+        } catch (IOException e) {
+            deleteTempFiles(uploads);
+            throw e;
+        }
+
+        String fileNames = uploads.stream().map(Upload::name).collect(Collectors.joining(", "));
+        IngestionJob job = new IngestionJob(UUID.randomUUID().toString(), fileNames, collection);
+        jobs.put(job.id, job);
+        try {
+            executor.execute(() -> runBulk(job, uploads));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            deleteTempFiles(uploads);
+            throw e;
+        }
+
+        log.info("Queued bulk ingestion job {} for {} files", job.id, uploads.size());
+        return job.toStatus();
+    }
+
+    public Optional<IngestionJobStatus> getStatus(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId)).map(IngestionJob::toStatus);
+    }
+
+    private void run(IngestionJob job, Path tempFile) {
+        job.state = State.RUNNING;
+        try {
+            pdfProcessingService.processPdf(tempFile, job.fileName, job, job.collection);
+            job.documentsDone.incrementAndGet();
+            documentsIngested.increment();
+            job.state = State.COMPLETED;
+            log.info("Ingestion job {} completed ({} segments)", job.id, job.segmentsDone.get());
+        } catch (Exception e) {
+            log.error("Ingestion job {} failed", job.id, e);
+            job.documentFailed(job.fileName, e.getMessage());
+            documentsFailed.increment();
+            job.error = e.getMessage();
+            job.state = State.FAILED;
+        } finally {
+            job.completedAt = LocalDateTime.now();
+            deleteTempFile(tempFile);
+        }
+    }
+
+    private void runBulk(IngestionJob job, List<Upload> uploads) {
+        job.state = State.RUNNING;
+        long start = System.nanoTime();
+        List<Future<?>> documents = new ArrayList<>();
+        try {
+            for (Upload upload : uploads) {
+                if (upload.archive()) {
+                    submitEntries(job, upload, documents);
+                } else {
+                    job.documentsTotal.incrementAndGet();
+                    pendingDocuments.acquire();
+                    documents.add(submitDocument(job, upload.name(), upload.path(), null));
+                }
+            }
+            for (Future<?> document : documents) {
+                document.get();
+            }
+
+            if (job.documentsDone.get() > 0) {
+                job.state = State.COMPLETED;
+            } else {
+                job.error = job.documentsTotal.get() == 0 ? "No PDFs found in the upload" : "No document could be ingested";
+                job.state = State.FAILED;
+            }
+            log.info("Bulk ingestion job {} finished: {} of {} documents, {} segments in {} s", job.id,
+                    job.documentsDone.get(), job.documentsTotal.get(), job.segmentsDone.get(),
+                    String.format("%.1f", (System.nanoTime() - start) / 1_000_000_000.0));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            documents.forEach(document -> document.cancel(true));
+            job.error = "Interrupted";
+            job.state = State.FAILED;
+        } catch (ExecutionException | RuntimeException e) {
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            log.error("Bulk ingestion job {} failed", job.id, cause);
+            documents.forEach(document -> document.cancel(true));
+            job.error = cause.getMessage();
+            job.state = State.FAILED;
+        } finally {
+            job.completedAt = LocalDateTime.now();
+            deleteTempFiles(uploads);
+        }
+    }
+
+    /**
+     * Hands a document to the parser pool. The caller holds a pending-document
+     * permit, which is given back once the document is done with or cancelled,
+     * along with deleting {@code spooled} if it is not null.
+     */
+    private Future<?> submitDocument(IngestionJob job, String name, Path path, Path spooled) {
+        FutureTask<Void> document = new FutureTask<>(
+                () -> ingestDocument(job, name, () -> new RandomAccessReadBufferedFile(path.toFile())), null) {
+            @Override
+            protected void done() {
+                if (spooled != null) {
+                    deleteTempFile(spooled);
+                }
+                pendingDocuments.release();
+            }
+        };
+        try {
+            parserPool.execute(document);
+        } catch (RejectedExecutionException e) {
+            document.cancel(false);
+            throw e;
+        }
+        return document;
+    }
+
+    /**
+     * Reads the PDF entries of a ZIP archive in order and hands each one to the
+     * parser pool as a temp file, waiting while too many documents are pending.
+     */
+    private void submitEntries(IngestionJob job, Upload archive, List<Future<?>> documents)
+            throws InterruptedException {
+        long maxEntryBytes = maxEntryMb * 1024L * 1024L;
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(Files.newInputStream(archive.path())))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory() || !entry.getName().toLowerCase(Locale.ROOT).endsWith(".pdf")) {
+                    continue;
+                }
+                String name = archive.name() + "/" + entry.getName();
+                job.documentsTotal.incrementAndGet();
+
+                pendingDocuments.acquire();
+                Path spooled;
+                try {
+                    spooled = spool(zip, maxEntryBytes);
+                } catch (IOException e) {
+                    pendingDocuments.release();
+                    throw e;
+                }
+                if (spooled == null) {
+                    pendingDocuments.release();
+                    job.documentFailed(name, "larger than " + maxEntryMb + " MB");
+                    documentsFailed.increment();
+                    continue;
+                }
+                documents.add(submitDocument(job, name, spooled, spooled));
+            }
+        } catch (IOException e) {
+            // Entries read before the damage are still ingested
+            log.warn("Could not read archive {} of job {}: {}", archive.name(), job.id, e.getMessage());
+            job.documentFailed(archive.name(), "unreadable archive: " + e.getMessage());
+            documentsFailed.increment();
+        }
+    }
+
+    /**
+     * Copies the current ZIP entry to a temp file, or returns null once it turns
+     * out larger than {@code maxBytes}.
+     */
+    private static Path spool(ZipInputStream zip, long maxBytes) throws IOException {
+        Path tempFile = Files.createTempFile("rag-entry-", ".pdf");
+        long written = 0;
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while (written <= maxBytes && (read = zip.read(buffer, 0,
+                    (int) Math.min(buffer.length, maxBytes + 1 - written))) != -1) {
+                out.write(buffer, 0, read);
+                written += read;
+            }
+        } catch (IOException e) {
+            deleteTempFile(tempFile);
+            throw e;
+        }
+        if (written > maxBytes) {
+            deleteTempFile(tempFile);
+            return null;
+        }
+        return tempFile;
+    }
+
+    private void ingestDocument(IngestionJob job, String name, DocumentSource source) {
+        try (RandomAccessRead pdf = source.open()) {
+            pdfProcessingService.processPdf(pdf, name, job, job.collection);
+            job.documentsDone.incrementAndGet();
+            documentsIngested.increment();
+        } catch (Exception e) {
+            log.warn("Could not ingest {} of job {}: {}", name, job.id, e.getMessage());
+            job.documentFailed(name, e.getMessage());
+            documentsFailed.increment();
+        }
+    }
+
+    private static Path copyToTempFile(MultipartFile file) throws IOException {
+        Path tempFile = Files.createTempFile("rag-upload-", isArchive(file) ? ".zip" : ".pdf");
+        try {
+            file.transferTo(tempFile);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        return tempFile;
+    }
+
+    private static void deleteTempFiles(List<Upload> uploads) {
+        uploads.forEach(upload -> deleteTempFile(upload.path()));
+    }
+
+    private static void deleteTempFile(Path tempFile) {
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            log.warn("Could not delete temp file {}", tempFile, e);
+        }
+    }
+
+    private static boolean hasExtension(MultipartFile file, String extension) {
+        String name = file.getOriginalFilename();
+        return name != null && name.toLowerCase(Locale.ROOT).endsWith(extension);
+    }
+
+    private void evictExpiredJobs() {
+        LocalDateTime cutoff = LocalDateTime.now().minus(Duration.ofMinutes(retentionMinutes));
+        jobs.values().removeIf(job -> job.completedAt != null && job.completedAt.isBefore(cutoff));
+    }
+
+    private static final class IngestionJob implements IngestionProgress {
+
+        private final String id;
+        private final String fileName;
+        private final String collection;
+        private final LocalDateTime submittedAt = LocalDateTime.now();
+        private final AtomicInteger segmentsDone = new AtomicInteger();
+        private final AtomicInteger segmentsTotal = new AtomicInteger();
+        private final AtomicInteger segmentsEmbedded = new AtomicInteger();
+        private final AtomicInteger segmentsReused = new AtomicInteger();
+        private final AtomicInteger documentsTotal = new AtomicInteger();
+        private final AtomicInteger documentsDone = new AtomicInteger();
+        private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+        private volatile State state = State.QUEUED;
+        private volatile String error;
+        private volatile LocalDateTime completedAt;
+
+        private IngestionJob(String id, String fileName, String collection) {
+            this.id = id;
+            this.fileName = fileName;
+            this.collection = collection;
+        }
+
+        private void documentFailed(String name, String reason) {
+            failures.add(name + ": " + reason);
+        }
+
+        @Override
+        public void segmentsQueued(int count) {
+            segmentsTotal.addAndGet(count);
+        }
+
+        @Override
+        public void segmentsEmbedded(int count) {
+            segmentsEmbedded.addAndGet(count);
+        }
+
+        @Override
+        public void segmentsReused(int count) {
+            segmentsReused.addAndGet(count);
+        }
+
+        @Override
+        public void segmentsCompleted(int count) {
+            segmentsDone.addAndGet(count);
+        }
+
+        private IngestionJobStatus toStatus() {
+            return new IngestionJobStatus(id, fileName, collection, state, segmentsDone.get(), segmentsTotal.get(),
+                    segmentsEmbedded.get(), segmentsReused.get(), documentsTotal.get(), documentsDone.get(),
+                    failures.size(), List.copyOf(failures), error, submittedAt, completedAt);
+        }
+    }
+}
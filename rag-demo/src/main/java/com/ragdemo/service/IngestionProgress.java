@@ -0,0 +1,25 @@
+package com.ragdemo.service;
+
+/**
+ * Receives segment counts as an ingestion moves through the pipeline.
+ */
+public interface IngestionProgress {
+
+    IngestionProgress NONE = new IngestionProgress() {
+    };
+
+    default void segmentsQueued(int count) {
+    }
+
+    /** Segments that needed a call to the embedding model. */
+    default void segmentsEmbedded(int count) {
+    }
+
+    /** Segments whose vector came from the segment index instead of the model. */
+    default void segmentsReused(int count) {
+    }
+
+    /** Segments that are fully processed, whether newly embedded or reused. */
+    default void segmentsCompleted(int count) {
+    }
+}
@@ -0,0 +1,12 @@
+package com.ragdemo.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class IngestionReport {
+    private int segments;
+    private int embedded;
+    private int reused;
+}
@@ -0,0 +1,467 @@
+package com.ragdemo.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Admits every call to Ollama through one of four lanes, in priority order:
+ * query embeddings, streamed chats, blocking chat and ingestion. Query
+ * embeddings are short, so they get a lane of their own instead of waiting
+ * behind streams that hold their slots until the last token.
+ * <p>
+ * Each lane has a concurrency limit between one and its
+ * {@code max-concurrent}, adapted AIMD-style to the latency its calls see: it
+ * grows by one per limit's worth of calls while latency stays close to the
+ * lane's long-run average, and shrinks by {@code backoff-ratio} once latency
+ * exceeds {@code latency-tolerance} times that average or a call fails. Calls
+ * that see congestion do not move the long-run average, so it cannot creep up
+ * to the congested latency, except once the limit is down to one. For
+ * streamed chats the latency is the time to the first token. Congestion in a
+ * chat lane also halves the ingestion limit, and ingestion is not admitted while
+ * chat calls are waiting, so bulk embedding gives way to users.
+ * <p>
+ * Calls over the limit wait in a bounded queue per lane. Chat calls give up after
+ * {@code max-wait-seconds}; ingestion waits as long as it takes.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class OllamaScheduler {
+
+    /**
+     * Lanes in priority order.
+     */
+    public enum Lane {
+        QUERY, INTERACTIVE, BLOCKING, INGESTION;
+
+        String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // Embeddings on threads without a lane are for questions someone is waiting on
+    private static final ThreadLocal<Lane> CURRENT_LANE = ThreadLocal.withInitial(() -> Lane.QUERY);
+
+    private static final double BASELINE_WEIGHT = 0.02;
+    private static final double RECENT_WEIGHT = 0.3;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${ollama.scheduler.enabled:true}")
+    private boolean enabled;
+
+    @Value("${ollama.scheduler.query.max-concurrent:4}")
+    private int queryMaxConcurrent;
+
+    @Value("${ollama.scheduler.query.queue-capacity:64}")
+    private int queryQueueCapacity;
+
+    @Value("${ollama.scheduler.interactive.max-concurrent:4}")
+    private int interactiveMaxConcurrent;
+
+    @Value("${ollama.scheduler.interactive.queue-capacity:64}")
+    private int interactiveQueueCapacity;
+
+    @Value("${ollama.scheduler.blocking.max-concurrent:2}")
+    private int blockingMaxConcurrent;
+
+    @Value("${ollama.scheduler.blocking.queue-capacity:32}")
+    private int blockingQueueCapacity;
+
+    @Value("${ollama.scheduler.ingestion.max-concurrent:2}")
+    private int ingestionMaxConcurrent;
+
+    @Value("${ollama.scheduler.ingestion.queue-capacity:16}")
+    private int ingestionQueueCapacity;
+
+    @Value("${ollama.scheduler.max-wait-seconds:30}")
+    private long maxWaitSeconds;
+
+    @Value("${ollama.scheduler.latency-tolerance:2.0}")
+    private double latencyTolerance;
+
+    @Value("${ollama.scheduler.backoff-ratio:0.9}")
+    private double backoffRatio;
+
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+
+    @PostConstruct
+    void init() {
+        lanes.put(Lane.QUERY, new LaneState(Lane.QUERY, queryMaxConcurrent, queryQueueCapacity));
+        lanes.put(Lane.INTERACTIVE, new LaneState(Lane.INTERACTIVE, interactiveMaxConcurrent, interactiveQueueCapacity));
+        lanes.put(Lane.BLOCKING, new LaneState(Lane.BLOCKING, blockingMaxConcurrent, blockingQueueCapacity));
+        lanes.put(Lane.INGESTION, new LaneState(Lane.INGESTION, ingestionMaxConcurrent, ingestionQueueCapacity));
+        log.info("Ollama scheduler {} (max concurrent: query {}, interactive {}, blocking {}, ingestion {})",
+                enabled ? "enabled" : "disabled", queryMaxConcurrent, interactiveMaxConcurrent,
+                blockingMaxConcurrent, ingestionMaxConcurrent);
+    }
+
+    /**
+     * Runs {@code action} with Ollama embedding calls on this thread scheduled in {@code lane}.
+     */
+    public <T> T inLane(Lane lane, Supplier<T> action) {
+        Lane previous = CURRENT_LANE.get();
+        CURRENT_LANE.set(lane);
+        try {
+            return action.get();
+        } finally {
+            CURRENT_LANE.set(previous);
+        }
+    }
+
+    /**
+     * Wraps an Ollama embedding client so each call waits for a slot in the lane of
+     * the calling thread.
+     */
+    public EmbeddingModel schedule(EmbeddingModel embeddingModel) {
+        return new EmbeddingModel() {
+            @Override
+            public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+                return call(CURRENT_LANE.get(), "embed", () -> embeddingModel.embedAll(segments));
+            }
+
+            @Override
+            public int dimension() {
+                return embeddingModel.dimension();
+            }
+        };
+    }
+
+    /**
+     * Runs a blocking Ollama call once {@code lane} admits it.
+     *
+     * @throws RejectedExecutionException if the lane's queue is full or the wait timed out
+     */
+    public <T> T call(Lane lane, String operation, Supplier<T> call) {
+        CompletableFuture<Permit> admission = acquire(lane, operation);
+        Permit permit;
+        try {
+            permit = admission.get();
+        } catch (InterruptedException e) {
+            if (!admission.cancel(false) && !admission.isCompletedExceptionally()) {
+                admission.join().cancelled();
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for Ollama", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new IllegalStateException(e.getCause());
+        }
+
+        boolean succeeded = false;
+        try {
+            T result = call.get();
+            succeeded = true;
+            return result;
+        } finally {
+            if (succeeded) {
+                permit.succeeded();
+            } else {
+                permit.failed();
+            }
+        }
+    }
+
+    /**
+     * Asks {@code lane} for a slot. The future completes with a permit once the call
+     * may go to Ollama, which must then report its outcome on the permit; it fails
+     * with {@link RejectedExecutionException} when the queue is full or, for chat
+     * lanes, the wait is too long. Cancelling it gives up the place in the queue.
+     */
+    public CompletableFuture<Permit> acquire(Lane lane, String operation) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(new Permit(null, operation));
+        }
+        LaneState state = lanes.get(lane);
+        Waiter waiter = new Waiter(state, operation, new CompletableFuture<>(), System.nanoTime());
+        List<Waiter> admitted;
+        synchronized (this) {
+            if (state.queue.size() >= state.queueCapacity) {
+                state.rejectedFull.increment();
+                return CompletableFuture.failedFuture(new RejectedExecutionException(
+                        "Too many " + lane.tag() + " calls waiting for Ollama"));
+            }
+            state.queue.add(waiter);
+            admitted = dispatch();
+        }
+        grant(admitted);
+
+        if (lane != Lane.INGESTION) {
+            waiter.future.orTimeout(maxWaitSeconds, TimeUnit.SECONDS);
+        }
+        CompletableFuture<Permit> result = new CompletableFuture<>();
+        waiter.future.whenComplete((permit, error) -> {
+            if (error == null) {
+                if (!result.complete(permit)) {
+                    // The caller gave up just as the slot was granted
+                    permit.cancelled();
+                }
+                return;
+            }
+            leaveQueue(waiter);
+            if (error instanceof TimeoutException) {
+                state.rejectedTimeout.increment();
+                result.completeExceptionally(new RejectedExecutionException(
+                        "Waited more than " + maxWaitSeconds + " s for Ollama"));
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        result.whenComplete((permit, error) -> {
+            if (result.isCancelled()) {
+                waiter.future.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    private void leaveQueue(Waiter waiter) {
+        List<Waiter> admitted;
+        synchronized (this) {
+            if (!waiter.state.queue.remove(waiter)) {
+                return;
+            }
+            admitted = dispatch();
+        }
+        grant(admitted);
+    }
+
+    /**
+     * Admits queued calls while their lanes have room, highest lane first. Must hold the lock.
+     */
+    private List<Waiter> dispatch() {
+        List<Waiter> admitted = new ArrayList<>();
+        boolean chatWaiting = false;
+        for (LaneState state : lanes.values()) {
+            while (!state.queue.isEmpty() && state.inFlight < state.limit()
+                    && !(state.lane == Lane.INGESTION && chatWaiting)) {
+                Waiter waiter = state.queue.poll();
+                if (waiter.future.isDone()) {
+                    continue;
+                }
+                state.inFlight++;
+                admitted.add(waiter);
+            }
+            if (state.lane != Lane.INGESTION && !state.queue.isEmpty()) {
+                chatWaiting = true;
+            }
+        }
+        return admitted;
+    }
+
+    private void grant(List<Waiter> admitted) {
+        for (Waiter waiter : admitted) {
+            waiter.state.queueWait.record(System.nanoTime() - waiter.enqueuedNanos, TimeUnit.NANOSECONDS);
+            Permit permit = new Permit(waiter.state, waiter.operation);
+            if (!waiter.future.complete(permit)) {
+                // Cancelled or timed out just before its turn came
+                permit.cancelled();
+            }
+        }
+    }
+
+    private void release(Permit permit, long latencyNanos, boolean failed) {
+        List<Waiter> admitted;
+        synchronized (this) {
+            LaneState state = permit.state;
+            boolean saturated = state.inFlight >= state.limit();
+            state.inFlight--;
+            if (latencyNanos >= 0) {
+                boolean congested = state.adapt(permit.operation, latencyNanos, failed, saturated);
+                if (congested && state.lane != Lane.INGESTION) {
+                    lanes.get(Lane.INGESTION).yieldTo(state.lane);
+                }
+            }
+            admitted = dispatch();
+        }
+        grant(admitted);
+    }
+
+    /**
+     * A slot for one call to Ollama, handed back by reporting how the call went.
+     * Only the first report counts.
+     */
+    public final class Permit {
+
+        private final LaneState state;
+        private final String operation;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile long firstTokenNanos;
+
+        private Permit(LaneState state, String operation) {
+            this.state = state;
+            this.operation = operation;
+        }
+
+        /**
+         * Marks the first token of a streamed response; its delay, not the whole
+         * stream, is the latency the lane adapts to.
+         */
+        public void firstToken() {
+            if (firstTokenNanos == 0) {
+                firstTokenNanos = System.nanoTime();
+            }
+        }
+
+        public void succeeded() {
+            release(false, true);
+        }
+
+        public void failed() {
+            release(true, true);
+        }
+
+        /**
+         * Releases the slot without taking the call into account, e.g. when the
+         * client went away.
+         */
+        public void cancelled() {
+            release(false, false);
+        }
+
+        private void release(boolean failed, boolean sample) {
+            if (state == null || !released.compareAndSet(false, true)) {
+                return;
+            }
+            long end = firstTokenNanos != 0 ? firstTokenNanos : System.nanoTime();
+            OllamaScheduler.this.release(this, sample ? end - startNanos : -1, failed);
+        }
+    }
+
+    private record Waiter(LaneState state, String operation, CompletableFuture<Permit> future, long enqueuedNanos) {
+    }
+
+    private final class LaneState {
+
+        private final Lane lane;
+        private final int maxConcurrent;
+        private final int queueCapacity;
+        private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+        // Embeddings and generations differ by orders of magnitude, so each has its own average
+        private final Map<String, Latency> latencies = new HashMap<>();
+        private final Counter rejectedFull;
+        private final Counter rejectedTimeout;
+        private final Timer queueWait;
+        private double limit;
+        private int inFlight;
+        private long lastDecreaseNanos;
+
+        private LaneState(Lane lane, int maxConcurrent, int queueCapacity) {
+            this.lane = lane;
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            this.queueCapacity = queueCapacity;
+            this.limit = this.maxConcurrent;
+
+            Gauge.builder("rag.ollama.limit", this, s -> s.limit)
+                    .description("Current concurrency limit of the lane")
+                    .tag("lane", lane.tag())
+                    .register(meterRegistry);
+            Gauge.builder("rag.ollama.in-flight", this, s -> s.inFlight)
+                    .description("Calls of the lane running on Ollama")
+                    .tag("lane", lane.tag())
+                    .register(meterRegistry);
+            Gauge.builder("rag.ollama.queued", queue, ArrayDeque::size)
+                    .description("Calls of the lane waiting for a slot")
+                    .tag("lane", lane.tag())
+                    .register(meterRegistry);
+            rejectedFull = Counter.builder("rag.ollama.rejected")
+                    .tag("lane", lane.tag()).tag("reason", "queue-full")
+                    .register(meterRegistry);
+            rejectedTimeout = Counter.builder("rag.ollama.rejected")
+                    .tag("lane", lane.tag()).tag("reason", "timeout")
+                    .register(meterRegistry);
+            queueWait = Timer.builder("rag.ollama.queue.wait")
+                    .description("Time calls waited for a slot")
+                    .tag("lane", lane.tag())
+                    .register(meterRegistry);
+        }
+
+        int limit() {
+            return Math.max(1, (int) limit);
+        }
+
+        /**
+         * Adjusts the limit for one finished call and tells whether the lane is congested.
+         */
+        boolean adapt(String operation, long latencyNanos, boolean failed, boolean saturated) {
+            Latency latency = latencies.computeIfAbsent(operation, o -> new Latency());
+            boolean congested = latency.record(latencyNanos, limit <= 1) || failed;
+            long now = System.nanoTime();
+            if (congested) {
+                // At most one decrease per typical call duration, as AIMD does once per round trip
+                if (now - lastDecreaseNanos >= latency.baseline) {
+                    limit = Math.max(1, limit * backoffRatio);
+                    lastDecreaseNanos = now;
+                }
+            } else if (saturated) {
+                // Only a limit that is actually reached needs to grow
+                limit = Math.min(maxConcurrent, limit + 1 / limit);
+            }
+            return congested;
+        }
+
+        void yieldTo(Lane congested) {
+            double before = limit;
+            limit = Math.max(1, limit / 2);
+            if (limit < before) {
+                log.debug("Ingestion limit lowered to {} for congestion in the {} lane",
+                        String.format("%.1f", limit), congested.tag());
+            }
+        }
+    }
+
+    /**
+     * Long-run and recent averages of one kind of call. The recent average running
+     * well above the long-run one signals that Ollama is queueing work.
+     */
+    private final class Latency {
+
+        private double baseline;
+        private double recent;
+
+        /**
+         * Adds one call and tells whether latency shows congestion. With {@code atFloor}
+         * the limit cannot back off any further, so the latency seen is what Ollama
+         * takes now and the long-run average follows it even while congested.
+         */
+        boolean record(long nanos, boolean atFloor) {
+            if (baseline == 0) {
+                baseline = nanos;
+                recent = nanos;
+                return false;
+            }
+            recent += RECENT_WEIGHT * (nanos - recent);
+            boolean congested = recent > baseline * latencyTolerance;
+            if (!congested || atFloor) {
+                baseline += BASELINE_WEIGHT * (nanos - baseline);
+            }
+            return congested;
+        }
+    }
+}
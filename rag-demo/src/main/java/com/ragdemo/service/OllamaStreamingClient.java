@@ -0,0 +1,317 @@
+package com.ragdemo.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking client for Ollama's streaming {@code /api/chat} endpoint.
+ * <p>
+ * Requests go through a shared {@link HttpClient} that keeps connections alive
+ * between chats. The NDJSON response body is fed buffer by buffer into Jackson's
+ * non-blocking parser, so no thread waits on the socket while the model is
+ * generating and a stream only costs a thread while a chunk is being handled.
+ * Streams are admitted through the interactive lane of the {@link OllamaScheduler}.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class OllamaStreamingClient {
+
+    private final OllamaScheduler ollamaScheduler;
+
+    @Value("${ollama.base-url:http://ollama:11434}")
+    private String ollamaBaseUrl;
+
+    @Value("${ollama.chat-model:llama3.2}")
+    private String chatModelName;
+
+    @Value("${ollama.timeout-seconds:600}")
+    private long timeoutSeconds;
+
+    @Value("${ollama.connect-timeout-seconds:30}")
+    private long connectTimeoutSeconds;
+
+    @Value("${ollama.streaming.threads:4}")
+    private int streamingThreads;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JsonFactory jsonFactory = objectMapper.getFactory();
+    private ExecutorService executor;
+    private HttpClient httpClient;
+    private URI chatUri;
+
+    @PostConstruct
+    void init() {
+        // Body chunks of all streams are handled on this small pool; the default
+        // executor would start a thread per concurrently active stream
+        executor = Executors.newFixedThreadPool(streamingThreads, new CustomizableThreadFactory("ollama-stream-"));
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+                .executor(executor)
+                .build();
+        chatUri = URI.create(ollamaBaseUrl + "/api/chat");
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts streaming a chat completion for {@code prompt}, handing each token to
+     * {@code onToken} as it is parsed. The returned future completes with the full
+     * response once Ollama reports {@code done}; cancelling it aborts the stream, or
+     * gives up its place if it is still waiting to be admitted.
+     */
+    public CompletableFuture<String> streamChat(String prompt, Consumer<String> onToken) {
+        CompletableFuture<OllamaScheduler.Permit> admission =
+                ollamaScheduler.acquire(OllamaScheduler.Lane.INTERACTIVE, "generate");
+        CompletableFuture<String> result = new CompletableFuture<>();
+        admission.whenComplete((permit, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (result.isDone()) {
+                permit.cancelled();
+                return;
+            }
+            CompletableFuture<String> stream = send(prompt, token -> {
+                permit.firstToken();
+                onToken.accept(token);
+            });
+            stream.whenComplete((response, streamError) -> {
+                if (stream.isCancelled()) {
+                    permit.cancelled();
+                } else if (streamError != null) {
+                    permit.failed();
+                    result.completeExceptionally(streamError);
+                } else {
+                    permit.succeeded();
+                    result.complete(response);
+                }
+            });
+            result.whenComplete((response, resultError) -> {
+                if (result.isCancelled()) {
+                    stream.cancel(true);
+                }
+            });
+        });
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                admission.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<String> send(String prompt, Consumer<String> onToken) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(chatUri)
+                    .timeout(Duration.ofSeconds(timeoutSeconds))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(requestBody(prompt)))
+                    .build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        log.debug("Sending request to Ollama: {}", chatUri);
+        TokenStreamSubscriber subscriber = new TokenStreamSubscriber(onToken);
+        CompletableFuture<String> result = new CompletableFuture<>();
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                subscriber.cancel();
+            }
+        });
+
+        httpClient.sendAsync(request, responseInfo -> responseInfo.statusCode() == 200
+                        ? subscriber
+                        : HttpResponse.BodySubscribers.mapping(
+                                HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8),
+                                body -> CompletableFuture.<String>failedFuture(new IOException(
+                                        "HTTP error code: " + responseInfo.statusCode() + " - " + body))))
+                .thenCompose(HttpResponse::body)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause() : error);
+                    } else {
+                        result.complete(response);
+                    }
+                });
+        return result;
+    }
+
+    private byte[] requestBody(String prompt) throws IOException {
+        ObjectNode requestNode = objectMapper.createObjectNode();
+        requestNode.put("model", chatModelName);
+        requestNode.put("stream", true);
+        ObjectNode messageNode = requestNode.putArray("messages").addObject();
+        messageNode.put("role", "user");
+        messageNode.put("content", prompt);
+        return objectMapper.writeValueAsBytes(requestNode);
+    }
+
+    /**
+     * Feeds response body buffers into a non-blocking JSON parser and picks the
+     * {@code message.content} (or {@code response}) strings out of each NDJSON line.
+     * Its body is handed out as soon as the headers arrive; the future inside
+     * completes when Ollama reports {@code done}. The rest of the body is still
+     * drained so the connection can go back to the pool.
+     */
+    private final class TokenStreamSubscriber implements HttpResponse.BodySubscriber<CompletableFuture<String>> {
+
+        private final Consumer<String> onToken;
+        private final StringBuilder fullResponse = new StringBuilder();
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final JsonParser parser;
+        private volatile Flow.Subscription subscription;
+        private volatile boolean cancelled;
+        private int depth;
+        private String rootField;
+        private String messageField;
+        private boolean done;
+
+        private TokenStreamSubscriber(Consumer<String> onToken) {
+            this.onToken = onToken;
+            try {
+                this.parser = jsonFactory.createNonBlockingByteBufferParser();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not create non-blocking JSON parser", e);
+            }
+        }
+
+        @Override
+        public CompletionStage<CompletableFuture<String>> getBody() {
+            return CompletableFuture.completedStage(result);
+        }
+
+        void cancel() {
+            cancelled = true;
+            Flow.Subscription current = subscription;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (cancelled) {
+                subscription.cancel();
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            try {
+                ByteBufferFeeder feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+                for (ByteBuffer buffer : buffers) {
+                    if (done) {
+                        break;
+                    }
+                    feeder.feedInput(buffer);
+                    drainTokens();
+                }
+            } catch (Exception e) {
+                subscription.cancel();
+                result.completeExceptionally(e);
+                return;
+            }
+            if (done && !result.isDone()) {
+                result.complete(fullResponse.toString());
+            }
+            if (!cancelled) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (!result.isDone()) {
+                result.complete(fullResponse.toString());
+            }
+        }
+
+        private void drainTokens() throws IOException {
+            JsonToken token;
+            while (!done && (token = parser.nextToken()) != JsonToken.NOT_AVAILABLE && token != null) {
+                switch (token) {
+                    case START_OBJECT, START_ARRAY -> depth++;
+                    case END_OBJECT, END_ARRAY -> {
+                        depth--;
+                        if (depth == 1) {
+                            messageField = null;
+                        } else if (depth == 0) {
+                            rootField = null;
+                        }
+                    }
+                    case FIELD_NAME -> {
+                        if (depth == 1) {
+                            rootField = parser.currentName();
+                        } else if (depth == 2 && "message".equals(rootField)) {
+                            messageField = parser.currentName();
+                        }
+                    }
+                    case VALUE_STRING -> {
+                        if ((depth == 2 && "message".equals(rootField) && "content".equals(messageField))
+                                || (depth == 1 && "response".equals(rootField))) {
+                            // Preserve all characters including spaces, newlines, etc.
+                            String text = parser.getText();
+                            fullResponse.append(text);
+                            onToken.accept(text);
+                        } else if (depth == 1 && "error".equals(rootField)) {
+                            throw new IOException("Ollama error: " + parser.getText());
+                        }
+                    }
+                    case VALUE_TRUE -> {
+                        if (depth == 1 && "done".equals(rootField)) {
+                            done = true;
+                        }
+                    }
+                    default -> {
+                        // numbers, nulls and false carry nothing we need
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.ragdemo.service;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.djl.util.PairList;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import dev.langchain4j.data.segment.TextSegment;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reranks with a small local cross-encoder in ONNX format, for example
+ * ms-marco-MiniLM-L-6-v2, which reads question and segment together and outputs
+ * one relevance logit per pair. Uses the ONNX Runtime and tokenizer that the
+ * in-process embedding model already brings along.
+ */
+@Component
+@ConditionalOnProperty(name = "rag.rerank.model", havingValue = "onnx")
+@Slf4j
+public class OnnxCrossEncoderReranker implements Reranker {
+
+    @Value("${rag.rerank.onnx.model-path}")
+    private String modelPath;
+
+    @Value("${rag.rerank.onnx.tokenizer-path}")
+    private String tokenizerPath;
+
+    @Value("${rag.rerank.onnx.max-length:512}")
+    private int maxLength;
+
+    private OrtEnvironment environment;
+    private OrtSession session;
+    private HuggingFaceTokenizer tokenizer;
+
+    @PostConstruct
+    void init() throws OrtException, IOException {
+        environment = OrtEnvironment.getEnvironment();
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            // Chunks are already scored in parallel on the rerank pool
+            options.setIntraOpNumThreads(1);
+            session = environment.createSession(modelPath, options);
+        }
+        tokenizer = HuggingFaceTokenizer.builder()
+                .optTokenizerPath(Path.of(tokenizerPath))
+                .optMaxLength(maxLength)
+                .optTruncateSecondOnly()
+                .optPadding(true)
+                .build();
+        log.info("Loaded cross-encoder reranker from {}", modelPath);
+    }
+
+    @PreDestroy
+    void close() throws OrtException {
+        session.close();
+        tokenizer.close();
+    }
+
+    @Override
+    public float[] score(String query, List<TextSegment> segments) {
+        PairList<String, String> pairs = new PairList<>(segments.size());
+        for (TextSegment segment : segments) {
+            pairs.add(query, segment.text());
+        }
+        // Padded to the longest pair of the batch
+        Encoding[] encodings = tokenizer.batchEncode(pairs);
+        long[][] inputIds = new long[encodings.length][];
+        long[][] attentionMask = new long[encodings.length][];
+        long[][] tokenTypeIds = new long[encodings.length][];
+        for (int i = 0; i < encodings.length; i++) {
+            inputIds[i] = encodings[i].getIds();
+            attentionMask[i] = encodings[i].getAttentionMask();
+            tokenTypeIds[i] = encodings[i].getTypeIds();
+        }
+
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put("input_ids", OnnxTensor.createTensor(environment, inputIds));
+            inputs.put("attention_mask", OnnxTensor.createTensor(environment, attentionMask));
+            if (session.getInputNames().contains("token_type_ids")) {
+                inputs.put("token_type_ids", OnnxTensor.createTensor(environment, tokenTypeIds));
+            }
+            try (OrtSession.Result result = session.run(inputs)) {
+                float[][] logits = (float[][]) result.get(0).getValue();
+                float[] scores = new float[logits.length];
+                for (int i = 0; i < logits.length; i++) {
+                    scores[i] = logits[i][0];
+                }
+                return scores;
+            }
+        } catch (OrtException e) {
+            throw new IllegalStateException("Cross-encoder scoring failed", e);
+        } finally {
+            inputs.values().forEach(OnnxTensor::close);
+        }
+    }
+}
@@ -3,19 +3,21 @@ package com.ragdemo.service;
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.DocumentSplitter;
 import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import io.micrometer.observation.ObservationRegistry;
 import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.RandomAccessReadBufferedFile;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.text.PDFTextStripper;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.store.embedding.EmbeddingStore;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.List;
 
 @Service
@@ -23,43 +25,87 @@ import java.util.List;
 @Slf4j
 public class PdfProcessingService {
 
-    private final EmbeddingModel embeddingModel;
-    private final EmbeddingStore<TextSegment> embeddingStore;
+    private final EmbeddingIngestionPipeline ingestionPipeline;
+    private final ObservationRegistry observationRegistry;
 
-    public void processPdf(MultipartFile file) throws IOException {
-        log.info("Processing PDF file: {}", file.getOriginalFilename());
+    @Value("${ingestion.pages-per-window:10}")
+    private int pagesPerWindow;
 
-        // Parse PDF document directly from input stream to avoid file system issues
-        String pdfText;
-        try (InputStream inputStream = file.getInputStream()) {
-            byte[] pdfBytes = inputStream.readAllBytes();
-            try (PDDocument pdDocument = Loader.loadPDF(pdfBytes)) {
-                PDFTextStripper stripper = new PDFTextStripper();
-                pdfText = stripper.getText(pdDocument);
-            }
-        }
+    public void processPdf(Path file, String fileName, IngestionProgress progress) throws IOException {
+        processPdf(file, fileName, progress, null);
+    }
 
-        if (pdfText == null || pdfText.trim().isEmpty()) {
-            throw new IOException("PDF file is empty or could not be parsed");
+    /**
+     * Ingests the PDF into {@code collection}, or the default collection when it is null.
+     */
+    public void processPdf(Path file, String fileName, IngestionProgress progress, String collection)
+            throws IOException {
+        try (RandomAccessRead source = new RandomAccessReadBufferedFile(file.toFile())) {
+            processPdf(source, fileName, progress, collection);
         }
+    }
 
-        // Create document from extracted text
-        Document document = Document.from(pdfText);
+    public void processPdf(RandomAccessRead source, String fileName, IngestionProgress progress) throws IOException {
+        processPdf(source, fileName, progress, null);
+    }
 
-        log.info("PDF loaded successfully. Text length: {}", document.text().length());
+    public void processPdf(RandomAccessRead source, String fileName, IngestionProgress progress, String collection)
+            throws IOException {
+        log.info("Processing PDF file: {}", fileName);
+        // Extraction, splitting and the pipeline's batches are recorded as children of this one
+        EmbeddingIngestionPipeline.stageObservation("total", observationRegistry)
+                .observeChecked(() -> ingest(source, fileName, progress, collection));
+    }
 
-        // Split document into chunks
+    private void ingest(RandomAccessRead source, String fileName, IngestionProgress progress, String collection)
+            throws IOException {
         DocumentSplitter splitter = DocumentSplitters.recursive(300, 50);
-        List<TextSegment> segments = splitter.split(document);
+        EmbeddingIngestionPipeline.Ingestion ingestion = collection == null
+                ? ingestionPipeline.begin(fileName, progress)
+                : ingestionPipeline.begin(fileName, progress, collection);
+
+        // Parse with temp-file backed stream caches so decoded streams don't pile up on the heap
+        try (PDDocument pdDocument = Loader.loadPDF(source, IOUtils.createTempFileOnlyStreamCache())) {
+            int pageCount = pdDocument.getNumberOfPages();
+            PDFTextStripper stripper = new PDFTextStripper();
+            long textLength = 0;
 
-        log.info("Document split into {} segments", segments.size());
+            // Extract a window of pages at a time and hand its segments straight to the pipeline.
+            // The last segment of each window is carried into the next one so chunks can span windows.
+            String carry = "";
+            for (int startPage = 1; startPage <= pageCount; startPage += pagesPerWindow) {
+                stripper.setStartPage(startPage);
+                stripper.setEndPage(Math.min(startPage + pagesPerWindow - 1, pageCount));
+                String windowText = EmbeddingIngestionPipeline.stageObservation("extract", observationRegistry)
+                        .observeChecked(() -> stripper.getText(pdDocument));
+                if (windowText == null || windowText.isBlank()) {
+                    continue;
+                }
+                textLength += windowText.length();
 
-        // Generate embeddings and store in vector database
-        for (TextSegment segment : segments) {
-            var embedding = embeddingModel.embed(segment).content();
-            embeddingStore.add(embedding, segment);
+                String text = carry + windowText;
+                List<TextSegment> segments = EmbeddingIngestionPipeline.stageObservation("split", observationRegistry)
+                        .observe(() -> splitter.split(Document.from(text)));
+                for (int i = 0; i < segments.size() - 1; i++) {
+                    ingestion.add(segments.get(i));
+                }
+                carry = segments.isEmpty() ? "" : segments.get(segments.size() - 1).text() + "\n";
+            }
+
+            if (!carry.isBlank()) {
+                ingestion.add(TextSegment.from(carry.trim()));
+            }
+
+            if (textLength == 0) {
+                throw new IOException("PDF file is empty or could not be parsed");
+            }
+
+            log.info("PDF loaded successfully. Pages: {}, text length: {}", pageCount, textLength);
         }
 
-        log.info("Successfully processed and stored {} segments in vector database", segments.size());
+        IngestionReport report = ingestion.finish();
+
+        log.info("Successfully processed {} segments ({} newly embedded, {} reused)",
+                report.getSegments(), report.getEmbedded(), report.getReused());
     }
 }
@@ -0,0 +1,209 @@
+package com.ragdemo.service;
+
+import com.ragdemo.dto.ChatHistoryEntry;
+import com.ragdemo.entity.ChatMessage;
+import com.ragdemo.repository.ChatMessageRepository;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds the generation prompt within a fixed token budget.
+ * <p>
+ * Token counts are estimated locally at about four characters per token. The
+ * question and instructions always go in; the most recent turns of the session
+ * are added in condensed form up to the history budget, and the retrieved
+ * segments fill what is left, best score first.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PromptAssembler {
+
+    private static final String INSTRUCTIONS =
+            "You are a helpful assistant that answers questions based on the provided context. " +
+            "Use the following context to answer the question. If the answer is not in the context, " +
+            "say that you don't have enough information.\n\n" +
+            "IMPORTANT: Format your response clearly with:\n" +
+            "- Proper paragraphs (use line breaks between paragraphs)\n" +
+            "- Bullet points or numbered lists when appropriate\n" +
+            "- Clear structure and organization\n" +
+            "- Use markdown formatting for better readability (use ** for bold, * for italic, etc.)\n\n";
+
+    private final ChatMessageRepository chatMessageRepository;
+    private final ChatHistoryWriter chatHistoryWriter;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rag.prompt.max-tokens:3000}")
+    private int maxTokens;
+
+    @Value("${rag.prompt.history-max-tokens:600}")
+    private int historyMaxTokens;
+
+    @Value("${rag.prompt.history-turns:4}")
+    private int historyTurns;
+
+    @Value("${rag.prompt.history-answer-chars:400}")
+    private int historyAnswerChars;
+
+    @Value("${rag.prompt.candidate-segments:10}")
+    private int candidateSegments;
+
+    private DistributionSummary promptTokens;
+    private DistributionSummary contextTokens;
+    private DistributionSummary historyTokens;
+    private DistributionSummary segmentsUsed;
+
+    @PostConstruct
+    void init() {
+        promptTokens = tokenSummary("rag.prompt.tokens", "Estimated tokens of the whole prompt");
+        contextTokens = tokenSummary("rag.prompt.context.tokens", "Estimated tokens of retrieved context in the prompt");
+        historyTokens = tokenSummary("rag.prompt.history.tokens", "Estimated tokens of conversation history in the prompt");
+        segmentsUsed = DistributionSummary.builder("rag.prompt.segments")
+                .description("Retrieved segments that fit into the prompt")
+                .register(meterRegistry);
+    }
+
+    /**
+     * How many segments to retrieve; the budget decides how many of them are used.
+     */
+    public int getCandidateSegments() {
+        return candidateSegments;
+    }
+
+    /**
+     * Rough token count, about four characters per token for English text.
+     */
+    public static int estimateTokens(String text) {
+        return (text.length() + 3) / 4;
+    }
+
+    /**
+     * The turns of the session that go into the prompt for {@code userMessage},
+     * empty for a new or missing session.
+     */
+    public String history(String userMessage, String sessionId) {
+        if (sessionId == null) {
+            return "";
+        }
+        int remaining = maxTokens - estimateTokens(INSTRUCTIONS) - estimateTokens(question(userMessage));
+        return historyTail(sessionId, Math.min(historyMaxTokens, remaining));
+    }
+
+    /**
+     * Builds the prompt from the question, the session's turns as returned by
+     * {@link #history} and as many of {@code matches} as still fit.
+     */
+    public String assemble(String userMessage, String history, List<EmbeddingMatch<TextSegment>> matches) {
+        String question = question(userMessage);
+        int remaining = maxTokens - estimateTokens(INSTRUCTIONS) - estimateTokens(question) - estimateTokens(history);
+
+        List<EmbeddingMatch<TextSegment>> byScore = new ArrayList<>(matches);
+        byScore.sort(Comparator.comparingDouble((EmbeddingMatch<TextSegment> m) -> m.score()).reversed());
+        StringBuilder context = new StringBuilder();
+        int used = 0;
+        for (EmbeddingMatch<TextSegment> match : byScore) {
+            String text = match.embedded().text();
+            int cost = estimateTokens(text) + 1;
+            // Skip a segment that does not fit; a shorter, lower-scored one may still fit
+            if (cost > remaining) {
+                continue;
+            }
+            if (context.length() > 0) {
+                context.append("\n\n");
+            }
+            context.append(text);
+            remaining -= cost;
+            used++;
+        }
+
+        StringBuilder prompt = new StringBuilder(INSTRUCTIONS);
+        if (!history.isEmpty()) {
+            prompt.append("Conversation so far:\n").append(history).append("\n");
+        }
+        prompt.append("Context:\n").append(context).append("\n\n").append(question);
+
+        String result = prompt.toString();
+        int tokens = estimateTokens(result);
+        promptTokens.record(tokens);
+        contextTokens.record(estimateTokens(context.toString()));
+        historyTokens.record(estimateTokens(history));
+        segmentsUsed.record(used);
+        log.debug("Assembled prompt of ~{} tokens with {}/{} segments", tokens, used, matches.size());
+        return result;
+    }
+
+    /**
+     * The latest turns of the session, oldest first, with long answers cut short.
+     * Older turns are dropped first once {@code budget} is reached. Turns that are
+     * still queued for writing are included.
+     */
+    private String historyTail(String sessionId, int budget) {
+        if (historyTurns <= 0 || budget <= 0) {
+            return "";
+        }
+        List<ChatMessage> pending = chatHistoryWriter.pendingMessages(sessionId);
+        List<ChatHistoryEntry> turns = new ArrayList<>(chatMessageRepository.findRecentHistory(sessionId, Limit.of(historyTurns)));
+        Set<LocalDateTime> stored = new HashSet<>();
+        turns.forEach(t -> stored.add(t.getTimestamp()));
+        for (ChatMessage m : pending) {
+            if (!stored.contains(m.getTimestamp())) {
+                turns.add(new ChatHistoryEntry(m.getId(), m.getMessage(), m.getResponse(), m.getTimestamp()));
+            }
+        }
+        turns.sort(Comparator.comparing(ChatHistoryEntry::getTimestamp).reversed());
+
+        List<String> rendered = new ArrayList<>();
+        int spent = 0;
+        for (ChatHistoryEntry turn : turns.subList(0, Math.min(historyTurns, turns.size()))) {
+            String text = "User: " + turn.getMessage() + "\nAssistant: " + condense(turn.getResponse()) + "\n";
+            spent += estimateTokens(text);
+            if (spent > budget) {
+                break;
+            }
+            rendered.add(0, text);
+        }
+        return String.join("", rendered);
+    }
+
+    private static String question(String userMessage) {
+        return "Question: " + userMessage + "\n\nAnswer:";
+    }
+
+    private String condense(String answer) {
+        String flat = answer.replaceAll("\\s+", " ").trim();
+        if (flat.length() <= historyAnswerChars) {
+            return flat;
+        }
+        // Cut at the last sentence end, or else word boundary, inside the limit
+        String head = flat.substring(0, historyAnswerChars);
+        int cut = head.lastIndexOf(". ");
+        if (cut < historyAnswerChars / 2) {
+            cut = head.lastIndexOf(' ');
+        } else {
+            cut++;
+        }
+        return (cut > 0 ? head.substring(0, cut) : head) + " ...";
+    }
+
+    private DistributionSummary tokenSummary(String name, String description) {
+        return DistributionSummary.builder(name)
+                .description(description)
+                .baseUnit("tokens")
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,232 @@
+package com.ragdemo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Lets concurrent identical questions share one answer. The first request for a
+ * {@link Key} runs the pipeline; requests for the same key that arrive while it
+ * runs attach to it instead of embedding, retrieving and generating again.
+ * <p>
+ * A streaming subscriber that attaches late first gets the text generated so far
+ * as one chunk, then the remaining tokens as they arrive. Generation is only
+ * cancelled once every subscriber has cancelled.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class QueryCoalescer {
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rag.coalescing.enabled:true}")
+    private boolean enabled;
+
+    private final Map<Key, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private Counter led;
+    private Counter attached;
+
+    /**
+     * Everything an answer depends on: the normalized question, the corpus version
+     * and index generation it is retrieved from, the collections searched and the
+     * conversation history that goes into the prompt.
+     */
+    public record Key(String question, long corpusVersion, int generation, List<String> collections,
+                      String history) {
+    }
+
+    @PostConstruct
+    void init() {
+        led = Counter.builder("rag.query.coalescing").tag("role", "leader")
+                .description("Questions that ran the pipeline or attached to one already running")
+                .register(meterRegistry);
+        attached = Counter.builder("rag.query.coalescing").tag("role", "attached")
+                .description("Questions that ran the pipeline or attached to one already running")
+                .register(meterRegistry);
+        Gauge.builder("rag.query.in-flight", inFlight, Map::size)
+                .description("Distinct questions being answered")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Subscribes to the answer for {@code key}, starting it unless it is already in
+     * flight. {@code pipeline} then runs on the calling thread; it gets a consumer to
+     * publish chunks of the answer to and returns the complete answer.
+     * {@code onChunk} may be null when only the complete answer is wanted.
+     * Cancelling the returned future unsubscribes.
+     */
+    public CompletableFuture<String> join(Key key, Consumer<String> onChunk,
+                                          Function<Consumer<String>, CompletableFuture<String>> pipeline) {
+        Flight created = new Flight(key);
+        Flight running = enabled ? inFlight.putIfAbsent(key, created) : null;
+        if (running != null) {
+            attached.increment();
+            log.info("Attached to the answer already being generated for this question");
+            return running.subscribe(onChunk);
+        }
+
+        led.increment();
+        CompletableFuture<String> result = created.subscribe(onChunk);
+        try {
+            created.attach(pipeline.apply(created::publish));
+        } catch (RuntimeException e) {
+            created.finish(null, e);
+        }
+        return result;
+    }
+
+    private final class Flight {
+
+        private final Key key;
+        private final StringBuilder text = new StringBuilder();
+        private final List<Subscriber> subscribers = new ArrayList<>();
+        private CompletableFuture<String> upstream;
+        private boolean done;
+        private String answer;
+        private Throwable failure;
+
+        private Flight(Key key) {
+            this.key = key;
+        }
+
+        CompletableFuture<String> subscribe(Consumer<String> onChunk) {
+            Subscriber subscriber = new Subscriber(onChunk);
+            boolean finished;
+            synchronized (this) {
+                // Whatever was published before this point is replayed, everything later delivered
+                subscriber.replay = text.toString();
+                finished = done;
+                if (!finished) {
+                    subscribers.add(subscriber);
+                }
+            }
+            subscriber.result.whenComplete((value, error) -> {
+                if (subscriber.result.isCancelled()) {
+                    leave(subscriber);
+                }
+            });
+            subscriber.flush();
+            if (finished) {
+                subscriber.complete(answer, failure);
+            }
+            return subscriber.result;
+        }
+
+        void publish(String chunk) {
+            List<Subscriber> targets;
+            synchronized (this) {
+                text.append(chunk);
+                targets = List.copyOf(subscribers);
+            }
+            targets.forEach(subscriber -> subscriber.deliver(chunk));
+        }
+
+        void attach(CompletableFuture<String> answer) {
+            boolean abandoned;
+            synchronized (this) {
+                upstream = answer;
+                abandoned = subscribers.isEmpty() && !done;
+            }
+            if (abandoned) {
+                answer.cancel(true);
+            }
+            answer.whenComplete(this::finish);
+        }
+
+        void finish(String result, Throwable error) {
+            List<Subscriber> targets;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                answer = result;
+                failure = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                targets = List.copyOf(subscribers);
+                subscribers.clear();
+            }
+            inFlight.remove(key, this);
+            targets.forEach(subscriber -> subscriber.complete(answer, failure));
+        }
+
+        private void leave(Subscriber subscriber) {
+            CompletableFuture<String> abandoned = null;
+            synchronized (this) {
+                if (subscribers.remove(subscriber) && subscribers.isEmpty() && !done) {
+                    // Nobody is listening any more; later requests start afresh
+                    inFlight.remove(key, this);
+                    abandoned = upstream;
+                }
+            }
+            if (abandoned != null) {
+                log.info("Every subscriber left, cancelling the answer in flight");
+                abandoned.cancel(true);
+            }
+        }
+    }
+
+    private static final class Subscriber {
+
+        private final Consumer<String> onChunk;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private String replay;
+
+        private Subscriber(Consumer<String> onChunk) {
+            this.onChunk = onChunk;
+        }
+
+        synchronized void deliver(String chunk) {
+            flush();
+            emit(chunk);
+        }
+
+        /**
+         * Sends the text published before this subscriber attached, ahead of any later chunk.
+         */
+        synchronized void flush() {
+            if (replay != null) {
+                String text = replay;
+                replay = null;
+                emit(text);
+            }
+        }
+
+        void complete(String answer, Throwable failure) {
+            flush();
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(answer);
+            }
+        }
+
+        private void emit(String chunk) {
+            if (onChunk == null || chunk.isEmpty() || result.isDone()) {
+                return;
+            }
+            try {
+                onChunk.accept(chunk);
+            } catch (RuntimeException e) {
+                // One broken subscriber must not stop the answer for the others
+                log.warn("Dropping subscriber that failed to take a chunk: {}", e.getMessage());
+                result.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.ragdemo.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of query embeddings bounded by an estimated size in bytes, so
+ * repeated questions skip the round trip to the embedding model.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class QueryEmbeddingCache {
+
+    // Rough per-entry cost of the map node, entry object and array headers
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rag.query-cache.max-bytes:16777216}")
+    private long maxBytes;
+
+    @Value("${rag.query-cache.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, CachedEmbedding> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long sizeBytes;
+
+    private Counter hits;
+    private Counter misses;
+
+    @PostConstruct
+    void init() {
+        hits = Counter.builder("rag.query-embedding-cache.requests").tag("result", "hit")
+                .register(meterRegistry);
+        misses = Counter.builder("rag.query-embedding-cache.requests").tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("rag.query-embedding-cache.size", this, QueryEmbeddingCache::size)
+                .register(meterRegistry);
+        Gauge.builder("rag.query-embedding-cache.bytes", this, QueryEmbeddingCache::sizeBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Embeds the query with the model of the given index generation. Queries that
+     * normalize to the same text share one entry, holding the vector of the one
+     * embedded last.
+     */
+    public Embedding embed(String query, ActiveIndex.Generation generation) {
+        String normalized = QueryText.normalize(query);
+        String key = generation.modelName() + '\u0000' + normalized;
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            CachedEmbedding cached = entries.get(key);
+            if (cached != null && cached.expiresAt > now) {
+                hits.increment();
+                return cached.embedding;
+            }
+            if (cached != null) {
+                remove(key);
+            }
+        }
+
+        misses.increment();
+        // Only the key is normalized; the model sees the question as typed, identifiers' case included
+        Embedding embedding = generation.embeddingModel().embed(query).content();
+
+        long entryBytes = ENTRY_OVERHEAD_BYTES + (long) key.length() * Character.BYTES
+                + (long) embedding.dimension() * Float.BYTES;
+        if (entryBytes <= maxBytes) {
+            synchronized (this) {
+                CachedEmbedding previous = entries.put(key,
+                        new CachedEmbedding(embedding, entryBytes, now + ttlMinutes * 60_000));
+                if (previous != null) {
+                    sizeBytes -= previous.bytes;
+                }
+                sizeBytes += entryBytes;
+                evictToLimit(now);
+            }
+        }
+        return embedding;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    private synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized long sizeBytes() {
+        return sizeBytes;
+    }
+
+    private void evictToLimit(long now) {
+        Iterator<Map.Entry<String, CachedEmbedding>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext() && sizeBytes > maxBytes) {
+            CachedEmbedding eldest = iterator.next().getValue();
+            sizeBytes -= eldest.bytes;
+            iterator.remove();
+        }
+        // Drop expired entries from the cold end while we're here
+        iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            CachedEmbedding entry = iterator.next().getValue();
+            if (entry.expiresAt > now) {
+                break;
+            }
+            sizeBytes -= entry.bytes;
+            iterator.remove();
+        }
+    }
+
+    private void remove(String key) {
+        CachedEmbedding removed = entries.remove(key);
+        if (removed != null) {
+            sizeBytes -= removed.bytes;
+        }
+    }
+
+    private record CachedEmbedding(Embedding embedding, long bytes, long expiresAt) {
+    }
+}
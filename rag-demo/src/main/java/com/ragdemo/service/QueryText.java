@@ -0,0 +1,23 @@
+package com.ragdemo.service;
+
+import java.util.Locale;
+
+/**
+ * Normalization shared by the caches that are keyed on the user's question.
+ */
+public final class QueryText {
+
+    private QueryText() {
+    }
+
+    /**
+     * Trims, lower-cases and collapses whitespace so trivially different
+     * phrasings of the same question map to the same key.
+     */
+    public static String normalize(String query) {
+        if (query == null) {
+            return "";
+        }
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,214 +1,271 @@
 package com.ragdemo.service;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.chat.ChatLanguageModel;
-import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
-import dev.langchain4j.store.embedding.EmbeddingStore;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class RagService {
 
+    // Percentiles, histogram buckets and SLOs are set under management.metrics.distribution
+    private static final String STAGE_OBSERVATION = "rag.query.stage";
+
     private final ChatLanguageModel chatModel;
-    private final EmbeddingModel embeddingModel;
-    private final EmbeddingStore<TextSegment> embeddingStore;
-    
-    @Value("${ollama.base-url:http://ollama:11434}")
-    private String ollamaBaseUrl;
-    
-    @Value("${ollama.chat-model:llama3.2}")
-    private String chatModelName;
-    
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final QueryEmbeddingCache queryEmbeddingCache;
+    private final ActiveIndex activeIndex;
+    private final SemanticResponseCache responseCache;
+    private final CorpusVersion corpusVersion;
+    private final RetrievalService retrievalService;
+    private final CollectionRouter collectionRouter;
+    private final OllamaStreamingClient ollamaStreamingClient;
+    private final PromptAssembler promptAssembler;
+    private final RerankService rerankService;
+    private final QueryCoalescer queryCoalescer;
+    private final OllamaScheduler ollamaScheduler;
+    private final MeterRegistry meterRegistry;
+    private final ObservationRegistry observationRegistry;
+
+    private DistributionSummary outputTokens;
+    private DistributionSummary tokensPerSecond;
+
+    @PostConstruct
+    void init() {
+        outputTokens = DistributionSummary.builder("rag.query.output.tokens")
+                .description("Tokens generated for one answer")
+                .baseUnit("tokens")
+                .register(meterRegistry);
+        tokensPerSecond = DistributionSummary.builder("rag.query.tokens-per-second")
+                .description("Generated tokens per second of generation time")
+                .publishPercentiles(0.05, 0.5)
+                .register(meterRegistry);
+    }
 
     public String generateResponse(String userMessage, String sessionId) {
         log.info("Generating response for session: {}", sessionId);
+        Observation request = stageObservation("total", null).start();
+        try {
+            return request.scoped(() -> {
+                Query query = query(userMessage, sessionId);
+                String response = queryCoalescer.join(query.key(), null, publish -> {
+                    String answer = answer(query);
+                    publish.accept(answer);
+                    return CompletableFuture.completedFuture(answer);
+                }).join();
+                // The answer may come from a streamed request for the same question
+                return formatResponse(response);
+            });
+        } catch (CompletionException e) {
+            request.error(e.getCause());
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        } catch (RuntimeException e) {
+            request.error(e);
+            throw e;
+        } finally {
+            request.stop();
+        }
+    }
 
-        // Generate embedding for user query
-        var queryEmbedding = embeddingModel.embed(userMessage).content();
+    /**
+     * Streams the answer to {@code onChunk} and calls {@code onComplete} once it is done.
+     * Embedding and retrieval run on the calling thread; generation does not. Cancelling
+     * the returned future aborts the generation unless other requests for the same
+     * question are still receiving it.
+     */
+    public CompletableFuture<String> generateStreamingResponse(String userMessage, String sessionId,
+                                                               Consumer<String> onChunk, Runnable onComplete) {
+        log.info("Generating streaming response for session: {}", sessionId);
+        Observation request = stageObservation("total", null).start();
+        CompletableFuture<String> answer;
+        try {
+            answer = request.scoped(() -> {
+                Query query = query(userMessage, sessionId);
+                return queryCoalescer.join(query.key(), onChunk, publish -> streamAnswer(query, request, publish));
+            });
+        } catch (RuntimeException e) {
+            request.error(e);
+            request.stop();
+            throw e;
+        }
 
-        // Retrieve relevant segments from vector store
-        List<EmbeddingMatch<TextSegment>> relevantMatches = embeddingStore.findRelevant(
-                queryEmbedding,
-                5 // max results
-        );
+        CompletableFuture<String> handled = answer.whenComplete((fullResponse, error) -> {
+            if (error == null) {
+                if (onComplete != null) {
+                    onComplete.run();
+                }
+            } else if (!answer.isCancelled()) {
+                request.error(error);
+                onChunk.accept("\n\n[Error: " + error.getMessage() + "]");
+            }
+            request.stop();
+        });
+        handled.whenComplete((fullResponse, error) -> {
+            if (handled.isCancelled()) {
+                log.info("Streaming response cancelled");
+                answer.cancel(true);
+            }
+        });
+        return handled;
+    }
 
-        // Build context from retrieved segments
-        String context = relevantMatches.stream()
-                .map(match -> match.embedded().text())
-                .collect(Collectors.joining("\n\n"));
+    /**
+     * Reads what the answer depends on. The whole request stays on one index
+     * generation, even if a rebuilt one is activated meanwhile.
+     */
+    private Query query(String userMessage, String sessionId) {
+        long version = corpusVersion.current();
+        ActiveIndex.Generation generation = activeIndex.current();
+        List<String> collections = collectionRouter.collectionsFor(sessionId);
+        String history = stage("history", () -> promptAssembler.history(userMessage, sessionId));
+        return new Query(userMessage, version, generation, collections, history);
+    }
 
-        log.info("Retrieved {} relevant segments", relevantMatches.size());
+    private String answer(Query query) {
+        // Generate embedding for user query (repeated questions are served from cache)
+        Embedding queryEmbedding = stage("embed", () ->
+                queryEmbeddingCache.embed(query.userMessage(), query.generation()));
 
-        // Build prompt with context
-        String prompt = buildPrompt(userMessage, context);
+        Optional<String> cachedAnswer = responseCache.lookup(queryEmbedding, query.cacheScope());
+        if (cachedAnswer.isPresent()) {
+            log.info("Answered from response cache");
+            return cachedAnswer.get();
+        }
+
+        String prompt = buildPrompt(queryEmbedding, query);
 
         // Generate response using LLM
-        String response = chatModel.generate(prompt);
+        long generateStart = System.nanoTime();
+        Response<AiMessage> generated = stage("generate", () -> ollamaScheduler.call(
+                OllamaScheduler.Lane.BLOCKING, "generate", () -> chatModel.generate(UserMessage.from(prompt))));
+        String response = generated.content().text();
+        TokenUsage usage = generated.tokenUsage();
+        recordThroughput(usage != null && usage.outputTokenCount() != null
+                ? usage.outputTokenCount()
+                : PromptAssembler.estimateTokens(response), System.nanoTime() - generateStart);
 
         // Format the response for better readability
         response = formatResponse(response);
+        responseCache.put(queryEmbedding, query.cacheScope(), response, query.version());
 
         log.info("Generated response successfully");
         return response;
     }
 
-    public void generateStreamingResponse(String userMessage, String sessionId, Consumer<String> onChunk, Runnable onComplete) {
-        log.info("Generating streaming response for session: {}", sessionId);
-
-        // Generate embedding for user query
-        var queryEmbedding = embeddingModel.embed(userMessage).content();
+    /**
+     * Embeds, retrieves and starts generating on the calling thread. Tokens are then
+     * pushed to {@code publish} from the HTTP client as they arrive; no thread waits on Ollama.
+     */
+    private CompletableFuture<String> streamAnswer(Query query, Observation request, Consumer<String> publish) {
+        // Generate embedding for user query (repeated questions are served from cache)
+        Embedding queryEmbedding = stage("embed", () ->
+                queryEmbeddingCache.embed(query.userMessage(), query.generation()));
 
-        // Retrieve relevant segments from vector store
-        List<EmbeddingMatch<TextSegment>> relevantMatches = embeddingStore.findRelevant(
-                queryEmbedding,
-                5 // max results
-        );
+        Optional<String> cachedAnswer = responseCache.lookup(queryEmbedding, query.cacheScope());
+        if (cachedAnswer.isPresent()) {
+            log.info("Answered from response cache");
+            publish.accept(cachedAnswer.get());
+            return CompletableFuture.completedFuture(cachedAnswer.get());
+        }
 
-        // Build context from retrieved segments
-        String context = relevantMatches.stream()
-                .map(match -> match.embedded().text())
-                .collect(Collectors.joining("\n\n"));
+        String prompt = buildPrompt(queryEmbedding, query);
 
-        log.info("Retrieved {} relevant segments", relevantMatches.size());
+        long streamStart = System.nanoTime();
+        Observation generate = stageObservation("generate", request).start();
+        Observation firstToken = stageObservation("first-token", request).start();
+        AtomicBoolean awaitingFirstToken = new AtomicBoolean(true);
+        AtomicInteger tokens = new AtomicInteger();
+        CompletableFuture<String> stream = ollamaStreamingClient.streamChat(prompt, token -> {
+            if (awaitingFirstToken.compareAndSet(true, false)) {
+                firstToken.stop();
+            }
+            tokens.incrementAndGet();
+            publish.accept(token);
+        });
+        stream.whenComplete((fullResponse, error) -> {
+            if (awaitingFirstToken.compareAndSet(true, false)) {
+                firstToken.stop();
+            }
+            if (stream.isCancelled()) {
+                log.info("Streaming generation cancelled");
+            } else if (error != null) {
+                log.error("Error during streaming", error);
+                generate.error(error);
+            } else {
+                recordThroughput(tokens.get(), System.nanoTime() - streamStart);
+                responseCache.put(queryEmbedding, query.cacheScope(), fullResponse, query.version());
+                log.info("Streaming response completed");
+            }
+            generate.stop();
+        });
+        return stream;
+    }
 
-        // Build prompt with context
-        String prompt = buildPrompt(userMessage, context);
+    /**
+     * Retrieves candidates by vector similarity and keyword match from the session's
+     * collections, reranks them and builds the prompt from as many segments and
+     * earlier turns as the token budget allows.
+     */
+    private String buildPrompt(Embedding queryEmbedding, Query query) {
+        int keep = promptAssembler.getCandidateSegments();
+        List<EmbeddingMatch<TextSegment>> candidates = stage("retrieve", () -> retrievalService.retrieve(
+                queryEmbedding, query.userMessage(), rerankService.candidateCount(keep), query.collections(),
+                query.generation().number()));
+        List<EmbeddingMatch<TextSegment>> relevantMatches = stage("rerank", () ->
+                rerankService.rerank(query.userMessage(), candidates, keep));
+        log.info("Retrieved {} candidate segments, kept {}", candidates.size(), relevantMatches.size());
 
-        // Generate streaming response using Ollama's streaming API directly
-        try {
-            URL url = new URL(ollamaBaseUrl + "/api/chat");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(30000);
-            conn.setReadTimeout(600000);
-
-            // Build request JSON for chat API (uses messages array format)
-            // Use ObjectMapper to properly serialize JSON
-            com.fasterxml.jackson.databind.node.ObjectNode requestNode = objectMapper.createObjectNode();
-            requestNode.put("model", chatModelName);
-            requestNode.put("stream", true);
-            
-            com.fasterxml.jackson.databind.node.ArrayNode messagesArray = objectMapper.createArrayNode();
-            com.fasterxml.jackson.databind.node.ObjectNode messageNode = objectMapper.createObjectNode();
-            messageNode.put("role", "user");
-            messageNode.put("content", prompt);
-            messagesArray.add(messageNode);
-            requestNode.set("messages", messagesArray);
-            
-            String requestJson = objectMapper.writeValueAsString(requestNode);
-
-            log.debug("Sending request to Ollama: {}", ollamaBaseUrl + "/api/chat");
-
-            // Send request
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = requestJson.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+        return stage("assemble", () -> promptAssembler.assemble(query.userMessage(), query.history(), relevantMatches));
+    }
 
-            // Check response code
-            int responseCode = conn.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                String errorMessage = "HTTP error code: " + responseCode;
-                try (BufferedReader errorReader = new BufferedReader(
-                        new InputStreamReader(conn.getErrorStream(), StandardCharsets.UTF_8))) {
-                    StringBuilder errorResponse = new StringBuilder();
-                    String errorLine;
-                    while ((errorLine = errorReader.readLine()) != null) {
-                        errorResponse.append(errorLine);
-                    }
-                    errorMessage += " - " + errorResponse.toString();
-                }
-                throw new IOException(errorMessage);
-            }
+    /**
+     * Runs one stage of answering a question as a child of the current request, which
+     * records a {@code rag.query.stage} timer and a tracing span.
+     */
+    private <T> T stage(String stage, Supplier<T> action) {
+        return stageObservation(stage, null).observe(action);
+    }
 
-            // Read streaming response
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.trim().isEmpty()) continue;
-                    
-                    try {
-                        JsonNode jsonNode = objectMapper.readTree(line);
-                        if (jsonNode.has("message")) {
-                            JsonNode msgNode = jsonNode.get("message");
-                            if (msgNode.has("content")) {
-                                String token = msgNode.get("content").asText();
-                                // Preserve all characters including spaces, newlines, etc.
-                                if (token != null) {
-                                    onChunk.accept(token);
-                                }
-                            }
-                        } else if (jsonNode.has("response")) {
-                            // Fallback for generate API format
-                            String token = jsonNode.get("response").asText();
-                            // Preserve all characters including spaces, newlines, etc.
-                            if (token != null) {
-                                onChunk.accept(token);
-                            }
-                        }
-                        
-                        // Check if done
-                        if (jsonNode.has("done") && jsonNode.get("done").asBoolean()) {
-                            break;
-                        }
-                    } catch (Exception jsonException) {
-                        log.warn("Failed to parse JSON line: {}", line, jsonException);
-                    }
-                }
-            }
+    private Observation stageObservation(String stage, Observation parent) {
+        return Observation.createNotStarted(STAGE_OBSERVATION, observationRegistry)
+                .contextualName("rag " + stage)
+                .lowCardinalityKeyValue("stage", stage)
+                .parentObservation(parent != null ? parent : observationRegistry.getCurrentObservation());
+    }
 
-            conn.disconnect();
-            log.info("Streaming response completed");
-            if (onComplete != null) {
-                onComplete.run();
-            }
-        } catch (Exception e) {
-            log.error("Error during streaming", e);
-            onChunk.accept("\n\n[Error: " + e.getMessage() + "]");
+    private void recordThroughput(int tokens, long nanos) {
+        outputTokens.record(tokens);
+        if (tokens > 0 && nanos > 0) {
+            tokensPerSecond.record(tokens * 1_000_000_000.0 / nanos);
         }
     }
 
-    private String buildPrompt(String userMessage, String context) {
-        return String.format(
-                "You are a helpful assistant that answers questions based on the provided context. " +
-                "Use the following context to answer the question. If the answer is not in the context, " +
-                "say that you don't have enough information.\n\n" +
-                "IMPORTANT: Format your response clearly with:\n" +
-                "- Proper paragraphs (use line breaks between paragraphs)\n" +
-                "- Bullet points or numbered lists when appropriate\n" +
-                "- Clear structure and organization\n" +
-                "- Use markdown formatting for better readability (use ** for bold, * for italic, etc.)\n\n" +
-                "Context:\n%s\n\n" +
-                "Question: %s\n\n" +
-                "Answer:",
-                context,
-                userMessage
-        );
-    }
-    
     /**
      * Formats the response to ensure proper line breaks and structure
      */
@@ -228,5 +285,31 @@ public class RagService {
         
         return formatted;
     }
-}
 
+    /**
+     * What the answer to one request depends on, read once when it arrives.
+     */
+    private record Query(String userMessage, long version, ActiveIndex.Generation generation,
+                         List<String> collections, String history) {
+
+        // Embeddings of different generations are not comparable, and earlier turns change the answer
+        String cacheScope() {
+            String scope = generation.number() + ":" + String.join(",", collections);
+            return history.isEmpty() ? scope : scope + ":" + sha256(history);
+        }
+
+        QueryCoalescer.Key key() {
+            return new QueryCoalescer.Key(QueryText.normalize(userMessage), version, generation.number(),
+                    collections, history);
+        }
+
+        private static String sha256(String text) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.ragdemo.service;
+
+import com.ragdemo.dto.IndexStatus;
+import com.ragdemo.entity.IndexGeneration;
+import com.ragdemo.entity.SegmentEmbedding;
+import com.ragdemo.repository.IndexGenerationRepository;
+import com.ragdemo.service.CollectionRegistry.CollectionIndex;
+import com.ragdemo.vectorstore.PersistentStore;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the vector index for another embedding model while the active one
+ * keeps serving. The stored segment texts are embedded again in throttled
+ * batches into a new generation of every collection; once all of them are
+ * complete, whatever arrived meanwhile is embedded too, uploads are held back
+ * briefly, and queries switch to the new generation in one step. Segments that
+ * still need embedding hold up the switch only after
+ * {@code rag.reindex.catch-up-rounds} attempts; until then they are embedded
+ * with uploads flowing and the switch is tried again.
+ * <p>
+ * Progress is checkpointed, so a build interrupted by a restart continues where
+ * it stopped. Stores of retired generations are left in place.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ReindexService {
+
+    private final ActiveIndex activeIndex;
+    private final CollectionRegistry collectionRegistry;
+    private final SegmentIndexService segmentIndexService;
+    private final IndexGenerationRepository indexGenerationRepository;
+    private final CorpusVersion corpusVersion;
+    private final OllamaScheduler ollamaScheduler;
+
+    @Value("${rag.reindex.batch-size:32}")
+    private int batchSize;
+
+    @Value("${rag.reindex.max-segments-per-second:50}")
+    private int maxSegmentsPerSecond;
+
+    @Value("${rag.reindex.checkpoint-batches:50}")
+    private int checkpointBatches;
+
+    @Value("${rag.reindex.auto-start:true}")
+    private boolean autoStart;
+
+    @Value("${rag.reindex.catch-up-rounds:5}")
+    private int catchUpRounds;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new CustomizableThreadFactory("shadow-index-"));
+    private volatile Job job;
+
+    /**
+     * Starts rebuilding for the configured model if the index in use was built with another one.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildIfNeeded() {
+        if (!autoStart || activeIndex.modelName().equals(activeIndex.configuredModelName())) {
+            return;
+        }
+        try {
+            start(activeIndex.configuredModelName());
+        } catch (RuntimeException e) {
+            log.error("Could not start rebuilding the index for {}", activeIndex.configuredModelName(), e);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts rebuilding the index for {@code targetModel} in the background.
+     *
+     * @throws IllegalStateException    if a rebuild is already running
+     * @throws IllegalArgumentException if the index in use is built with {@code targetModel}
+     */
+    public synchronized IndexStatus start(String targetModel) {
+        if (job != null && job.state == IndexStatus.State.RUNNING) {
+            throw new IllegalStateException("The index is already being rebuilt for " + job.modelName);
+        }
+        ActiveIndex.Generation active = activeIndex.current();
+        if (targetModel.equals(active.modelName())) {
+            throw new IllegalArgumentException("The index in use is already built with " + targetModel);
+        }
+
+        IndexGeneration generation = prepareGeneration(active, targetModel);
+        Job started = new Job(generation.getGeneration(), targetModel,
+                segmentIndexService.countStored(active.modelName()) - segmentIndexService.countStored(targetModel));
+        job = started;
+        executor.execute(() -> build(started, active));
+        return status();
+    }
+
+    public IndexStatus status() {
+        ActiveIndex.Generation active = activeIndex.current();
+        Job current = job;
+        if (current == null) {
+            return new IndexStatus(active.number(), active.modelName(), activeIndex.configuredModelName(),
+                    null, null, null, 0, 0, 0, null, null, null);
+        }
+        return new IndexStatus(active.number(), active.modelName(), activeIndex.configuredModelName(),
+                current.state, current.generation, current.modelName, current.segmentsDone.get(),
+                current.segmentsTotal, current.segmentsEmbedded.get(), current.error, current.startedAt,
+                current.completedAt);
+    }
+
+    private IndexGeneration prepareGeneration(ActiveIndex.Generation active, String targetModel) {
+        if (indexGenerationRepository.findFirstByStateOrderByGenerationDesc(IndexGeneration.State.ACTIVE).isEmpty()) {
+            // Record the generation in use, so its model is known once the new one's markers exist
+            indexGenerationRepository.save(new IndexGeneration(active.number(), active.modelName(),
+                    IndexGeneration.State.ACTIVE, null, null, LocalDateTime.now()));
+        }
+
+        Optional<IndexGeneration> latest = indexGenerationRepository.findFirstByOrderByGenerationDesc();
+        if (latest.isPresent() && latest.get().getGeneration() > active.number()) {
+            IndexGeneration unfinished = latest.get();
+            if (unfinished.getModelName().equals(targetModel)) {
+                log.info("Resuming index generation {} for {}", unfinished.getGeneration(), targetModel);
+                unfinished.setState(IndexGeneration.State.BUILDING);
+                unfinished.setError(null);
+                return indexGenerationRepository.save(unfinished);
+            }
+            if (unfinished.getState() == IndexGeneration.State.BUILDING) {
+                unfinished.setState(IndexGeneration.State.FAILED);
+                unfinished.setError("Abandoned for a rebuild with " + targetModel);
+                indexGenerationRepository.save(unfinished);
+            }
+        }
+
+        int number = Math.max(latest.map(IndexGeneration::getGeneration).orElse(0), active.number()) + 1;
+        // Markers left by an earlier index built with this model point into stores that are no longer used
+        segmentIndexService.clearStoredMarkers(targetModel);
+        log.info("Building index generation {} for {}", number, targetModel);
+        return indexGenerationRepository.save(new IndexGeneration(number, targetModel,
+                IndexGeneration.State.BUILDING, null, null, null));
+    }
+
+    private void build(Job job, ActiveIndex.Generation active) {
+        try {
+            ActiveIndex.Generation next = activeIndex.generation(job.generation, job.modelName);
+            Map<String, Shadow> shadows = new LinkedHashMap<>();
+            for (String name : segmentIndexService.collectionNames(active.modelName())) {
+                Shadow shadow = shadows.computeIfAbsent(name, n -> new Shadow(collectionRegistry.open(n, next)));
+                copy(shadow, active.modelName(), next, job, true, true);
+                checkpoint(shadow, next);
+                log.info("Collection {} built for generation {} ({} of {} segments done)",
+                        name, job.generation, job.segmentsDone.get(), job.segmentsTotal);
+            }
+
+            for (int round = 1; ; round++) {
+                // Embed what arrived during the build while uploads still flow
+                for (String name : segmentIndexService.collectionNames(active.modelName())) {
+                    Shadow shadow = shadows.computeIfAbsent(name, n -> new Shadow(collectionRegistry.open(n, next)));
+                    copy(shadow, active.modelName(), next, job, false, true);
+                    checkpoint(shadow, next);
+                }
+                boolean embedWhileSwitching = round >= catchUpRounds;
+                boolean switched = activeIndex.switchTo(next, () -> {
+                    // Uploads wait from here on, so nothing that arrived meanwhile is missed
+                    Map<String, CollectionIndex> collections = new LinkedHashMap<>();
+                    for (String name : segmentIndexService.collectionNames(active.modelName())) {
+                        Shadow shadow = shadows.computeIfAbsent(name,
+                                n -> new Shadow(collectionRegistry.open(n, next)));
+                        boolean complete = copy(shadow, active.modelName(), next, job, false, embedWhileSwitching);
+                        checkpoint(shadow, next);
+                        if (!complete) {
+                            return false;
+                        }
+                        collections.put(name, shadow.index);
+                    }
+                    markActive(job.generation);
+                    collectionRegistry.activate(next, collections);
+                    corpusVersion.increment();
+                    return true;
+                });
+                if (switched) {
+                    break;
+                }
+                log.info("Segments arrived while switching to generation {}, catching up again", job.generation);
+            }
+            job.completedAt = LocalDateTime.now();
+            job.state = IndexStatus.State.COMPLETED;
+        } catch (RuntimeException e) {
+            log.error("Building index generation {} for {} failed", job.generation, job.modelName, e);
+            markFailed(job.generation, e.getMessage());
+            job.error = e.getMessage();
+            job.completedAt = LocalDateTime.now();
+            job.state = IndexStatus.State.FAILED;
+        }
+    }
+
+    /**
+     * Embeds what is stored in the shadow's collection under {@code sourceModel} but
+     * not yet in the shadow, batch by batch in id order. Without {@code embed} it
+     * stops at the first batch that needs the embedding model.
+     *
+     * @return whether everything was copied
+     */
+    private boolean copy(Shadow shadow, String sourceModel, ActiveIndex.Generation next, Job job, boolean throttle,
+                         boolean embed) {
+        long afterId = 0;
+        List<SegmentEmbedding> page;
+        do {
+            long batchStart = System.nanoTime();
+            page = segmentIndexService.findStoredWithoutTarget(shadow.index.name(), sourceModel, next.modelName(),
+                    afterId, batchSize);
+            if (page.isEmpty()) {
+                return true;
+            }
+            afterId = page.get(page.size() - 1).getId();
+            if (!copyBatch(shadow, page, next, job, embed)) {
+                return false;
+            }
+            if (throttle) {
+                throttle(page.size(), batchStart);
+            }
+        } while (page.size() == batchSize);
+        return true;
+    }
+
+    private boolean copyBatch(Shadow shadow, List<SegmentEmbedding> page, ActiveIndex.Generation next, Job job,
+                              boolean embed) {
+        String targetModel = next.modelName();
+        Map<String, SegmentEmbedding> indexed = segmentIndexService.lookup(targetModel,
+                page.stream().map(SegmentEmbedding::getContentHash).toList());
+
+        // Content already embedded with the target model, e.g. in another collection, is reused
+        List<SegmentEmbedding> toEmbed = page.stream()
+                .filter(source -> !indexed.containsKey(source.getContentHash()))
+                .toList();
+        if (!toEmbed.isEmpty() && !embed) {
+            return false;
+        }
+        List<Embedding> newEmbeddings = toEmbed.isEmpty()
+                ? List.of()
+                : ollamaScheduler.inLane(OllamaScheduler.Lane.INGESTION, () -> next.embeddingModel()
+                        .embedAll(toEmbed.stream().map(source -> TextSegment.from(source.getText())).toList())
+                        .content());
+
+        List<SegmentEmbedding> entries = new ArrayList<>(page.size());
+        List<SegmentEmbedding> created = new ArrayList<>(toEmbed.size());
+        List<Embedding> embeddings = new ArrayList<>(page.size());
+        List<TextSegment> segments = new ArrayList<>(page.size());
+        int nextEmbedding = 0;
+        for (SegmentEmbedding source : page) {
+            TextSegment segment = TextSegment.from(source.getText());
+            SegmentEmbedding entry = indexed.get(source.getContentHash());
+            if (entry == null) {
+                Embedding embedding = newEmbeddings.get(nextEmbedding++);
+                entry = segmentIndexService.newEntry(targetModel, source.getContentHash(), segment, embedding);
+                created.add(entry);
+                embeddings.add(embedding);
+            } else {
+                embeddings.add(segmentIndexService.toEmbedding(entry));
+            }
+            entries.add(entry);
+            segments.add(segment);
+        }
+
+        // New vectors are kept right away, so a resumed build does not embed them again
+        segmentIndexService.record(created);
+        List<String> ids = shadow.index.embeddingStore().addAll(embeddings, segments);
+        shadow.index.lexicalIndex().addAll(ids, segments);
+        shadow.pendingEntries.addAll(entries);
+        shadow.pendingIds.addAll(ids);
+        job.segmentsDone.addAndGet(page.size());
+        job.segmentsEmbedded.addAndGet(toEmbed.size());
+
+        // Chroma has stored the batch already; local stores are written out every few batches
+        if (!(shadow.index.embeddingStore() instanceof PersistentStore) || ++shadow.batches % checkpointBatches == 0) {
+            checkpoint(shadow, next);
+        }
+        return true;
+    }
+
+    /**
+     * Records the shadow's pending segments as stored once its store holds them durably.
+     */
+    private void checkpoint(Shadow shadow, ActiveIndex.Generation next) {
+        if (shadow.pendingEntries.isEmpty()) {
+            return;
+        }
+        if (shadow.index.embeddingStore() instanceof PersistentStore store) {
+            try {
+                store.persist();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to persist collection " + shadow.index.name(), e);
+            }
+        }
+        segmentIndexService.recordStored(shadow.index.name(), next.modelName(), shadow.pendingEntries,
+                shadow.pendingIds);
+        shadow.pendingEntries.clear();
+        shadow.pendingIds.clear();
+    }
+
+    private void throttle(int segments, long batchStart) {
+        if (maxSegmentsPerSecond <= 0) {
+            return;
+        }
+        long remaining = segments * 1_000_000_000L / maxSegmentsPerSecond - (System.nanoTime() - batchStart);
+        if (remaining > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while rebuilding the index", e);
+            }
+        }
+    }
+
+    private void markActive(int generation) {
+        // The new row is activated first; with two active rows the newer one wins at startup
+        IndexGeneration next = indexGenerationRepository.findById(generation).orElseThrow();
+        Optional<IndexGeneration> previous =
+                indexGenerationRepository.findFirstByStateOrderByGenerationDesc(IndexGeneration.State.ACTIVE);
+        next.setState(IndexGeneration.State.ACTIVE);
+        next.setActivatedAt(LocalDateTime.now());
+        indexGenerationRepository.save(next);
+        previous.ifPresent(retired -> {
+            retired.setState(IndexGeneration.State.RETIRED);
+            indexGenerationRepository.save(retired);
+        });
+    }
+
+    private void markFailed(int generation, String error) {
+        try {
+            indexGenerationRepository.findById(generation).ifPresent(row -> {
+                row.setState(IndexGeneration.State.FAILED);
+                row.setError(error == null || error.length() <= 1000 ? error : error.substring(0, 1000));
+                indexGenerationRepository.save(row);
+            });
+        } catch (RuntimeException e) {
+            log.warn("Could not record the failure of index generation {}: {}", generation, e.getMessage());
+        }
+    }
+
+    private static final class Job {
+
+        private final int generation;
+        private final String modelName;
+        private final long segmentsTotal;
+        private final LocalDateTime startedAt = LocalDateTime.now();
+        private final AtomicLong segmentsDone = new AtomicLong();
+        private final AtomicLong segmentsEmbedded = new AtomicLong();
+        private volatile IndexStatus.State state = IndexStatus.State.RUNNING;
+        private volatile String error;
+        private volatile LocalDateTime completedAt;
+
+        private Job(int generation, String modelName, long segmentsTotal) {
+            this.generation = generation;
+            this.modelName = modelName;
+            this.segmentsTotal = segmentsTotal;
+        }
+    }
+
+    /**
+     * A collection of the generation being built and what it holds that is not yet recorded.
+     */
+    private static final class Shadow {
+
+        private final CollectionIndex index;
+        private final List<SegmentEmbedding> pendingEntries = new ArrayList<>();
+        private final List<String> pendingIds = new ArrayList<>();
+        private int batches;
+
+        private Shadow(CollectionIndex index) {
+            this.index = index;
+        }
+    }
+}
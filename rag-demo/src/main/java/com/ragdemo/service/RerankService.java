@@ -0,0 +1,113 @@
+package com.ragdemo.service;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reranking stage between retrieval and prompt assembly. Retrieval fetches
+ * {@code rag.rerank.candidates} segments, the {@link Reranker} scores them in
+ * chunks on a small bounded pool, and only the best ones are kept.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RerankService {
+
+    private final Reranker reranker;
+
+    @Value("${rag.rerank.enabled:true}")
+    private boolean enabled;
+
+    @Value("${rag.rerank.candidates:50}")
+    private int candidates;
+
+    @Value("${rag.rerank.threads:2}")
+    private int threads;
+
+    @Value("${rag.rerank.queue-capacity:64}")
+    private int queueCapacity;
+
+    @Value("${rag.rerank.chunk-size:16}")
+    private int chunkSize;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    void init() {
+        // When the pool is saturated the request thread scores its own chunks
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("rerank-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        log.info("Reranking {} with {}", enabled ? "enabled" : "disabled", reranker.getClass().getSimpleName());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * How many segments to retrieve when {@code keep} of them end up in the prompt.
+     */
+    public int candidateCount(int keep) {
+        return enabled ? Math.max(candidates, keep) : keep;
+    }
+
+    /**
+     * Returns the {@code keep} best segments by reranker score, which replaces the
+     * retrieval score. If scoring fails the retrieval order is kept.
+     */
+    public List<EmbeddingMatch<TextSegment>> rerank(String query, List<EmbeddingMatch<TextSegment>> matches, int keep) {
+        if (!enabled || matches.size() <= 1) {
+            return matches.size() > keep ? matches.subList(0, keep) : matches;
+        }
+
+        List<TextSegment> segments = matches.stream().map(EmbeddingMatch::embedded).toList();
+        float[] scores = new float[segments.size()];
+        List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        try {
+            for (int from = 0; from < segments.size(); from += chunkSize) {
+                int start = from;
+                int end = Math.min(from + chunkSize, segments.size());
+                Runnable scoreChunk = () -> System.arraycopy(
+                        reranker.score(query, segments.subList(start, end)), 0, scores, start, end - start);
+                if (end == segments.size()) {
+                    // The last chunk runs here instead of waiting for a pool thread
+                    scoreChunk.run();
+                } else {
+                    chunks.add(CompletableFuture.runAsync(scoreChunk, executor));
+                }
+            }
+            CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new)).join();
+        } catch (RuntimeException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.warn("Reranking failed, keeping retrieval order: {}", cause.getMessage());
+            return matches.size() > keep ? matches.subList(0, keep) : matches;
+        }
+
+        List<EmbeddingMatch<TextSegment>> reranked = new ArrayList<>(matches.size());
+        for (int i = 0; i < matches.size(); i++) {
+            EmbeddingMatch<TextSegment> match = matches.get(i);
+            reranked.add(new EmbeddingMatch<>((double) scores[i], match.embeddingId(), match.embedding(), match.embedded()));
+        }
+        // Stable, so equal scores keep their retrieval order
+        reranked.sort(Comparator.comparingDouble((EmbeddingMatch<TextSegment> m) -> m.score()).reversed());
+        return reranked.size() > keep ? new ArrayList<>(reranked.subList(0, keep)) : reranked;
+    }
+}
@@ -0,0 +1,18 @@
+package com.ragdemo.service;
+
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.util.List;
+
+/**
+ * Scores retrieved segments against the question so the best ones go into the
+ * prompt. Selected with {@code rag.rerank.model}; implementations must be safe
+ * to call from several threads at once.
+ */
+public interface Reranker {
+
+    /**
+     * Relevance of each segment to {@code query}, higher is better, in the order of {@code segments}.
+     */
+    float[] score(String query, List<TextSegment> segments);
+}
@@ -0,0 +1,280 @@
+package com.ragdemo.service;
+
+import com.ragdemo.service.CollectionRegistry.CollectionIndex;
+import com.ragdemo.vectorstore.LexicalIndex;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hybrid retrieval: vector search in the embedding store plus BM25 search in the
+ * {@link LexicalIndex}, merged by reciprocal-rank fusion. A segment scores
+ * {@code 1 / (k + rank)} for each list it appears in, so exact term matches the
+ * embedding misses still make it into the context.
+ * <p>
+ * A query routed to several collections searches them concurrently, each within
+ * {@code rag.collections.timeout-ms}, and fuses the candidates of all of them in
+ * one pass, so results are ranked across collections rather than per collection.
+ * A collection that fails, is too slow or finds the search pool full is left out
+ * rather than failing the query.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RetrievalService {
+
+    // Highest score first; equal scores are ordered by text, then id, so results do not depend on map order
+    private static final Comparator<EmbeddingMatch<TextSegment>> BEST_FIRST =
+            Comparator.comparingDouble((EmbeddingMatch<TextSegment> m) -> m.score()).reversed()
+                    .thenComparing(m -> m.embedded().text())
+                    .thenComparing(EmbeddingMatch::embeddingId);
+
+    private static final Comparator<LexicalIndex.Hit> BEST_HIT_FIRST =
+            Comparator.comparingDouble(LexicalIndex.Hit::score).reversed()
+                    .thenComparing(hit -> hit.segment().text())
+                    .thenComparing(LexicalIndex.Hit::id);
+
+    private final CollectionRegistry collectionRegistry;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rag.retrieval.hybrid:true}")
+    private boolean hybrid;
+
+    @Value("${rag.retrieval.rrf-k:60}")
+    private int rrfK;
+
+    @Value("${rag.collections.timeout-ms:2000}")
+    private long collectionTimeoutMs;
+
+    @Value("${rag.collections.fan-out-threads:8}")
+    private int fanOutThreads;
+
+    @Value("${rag.collections.queue-capacity:64}")
+    private int fanOutQueueCapacity;
+
+    private ThreadPoolExecutor fanOutExecutor;
+    private Counter timeouts;
+    private Counter failures;
+    private Counter rejections;
+
+    @PostConstruct
+    void init() {
+        // When the pool is saturated the search is rejected and its collection left out
+        fanOutExecutor = new ThreadPoolExecutor(fanOutThreads, fanOutThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(fanOutQueueCapacity), new CustomizableThreadFactory("retrieve-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        timeouts = Counter.builder("rag.retrieval.collection.skipped").tag("reason", "timeout")
+                .description("Collection searches left out of a query")
+                .register(meterRegistry);
+        failures = Counter.builder("rag.retrieval.collection.skipped").tag("reason", "error")
+                .description("Collection searches left out of a query")
+                .register(meterRegistry);
+        rejections = Counter.builder("rag.retrieval.collection.skipped").tag("reason", "rejected")
+                .description("Collection searches left out of a query")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        fanOutExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns up to {@code maxResults} segments of the default collection, best first.
+     */
+    public List<EmbeddingMatch<TextSegment>> retrieve(Embedding queryEmbedding, String queryText, int maxResults) {
+        return retrieve(queryEmbedding, queryText, maxResults, List.of(collectionRegistry.defaultCollection()));
+    }
+
+    /**
+     * Returns up to {@code maxResults} segments for the query from the given
+     * collections, best first. With hybrid retrieval the scores are fused ranks,
+     * not similarities.
+     */
+    public List<EmbeddingMatch<TextSegment>> retrieve(Embedding queryEmbedding, String queryText, int maxResults,
+                                                      List<String> collections) {
+        return retrieve(queryEmbedding, queryText, maxResults, collections, -1);
+    }
+
+    /**
+     * Like {@link #retrieve(Embedding, String, int, List)}, but searches the
+     * collections of the index generation the query was embedded for, even if a
+     * newer one has been activated meanwhile.
+     */
+    public List<EmbeddingMatch<TextSegment>> retrieve(Embedding queryEmbedding, String queryText, int maxResults,
+                                                      List<String> collections, int generation) {
+        if (collections.size() == 1) {
+            // Nothing to fall back on, so a single collection is searched without a deadline
+            return fuse(List.of(search(collection(collections.get(0), generation), queryEmbedding, queryText,
+                    maxResults)), maxResults);
+        }
+
+        List<CompletableFuture<Candidates>> searches = new ArrayList<>(collections.size());
+        for (String name : collections) {
+            try {
+                // Slow searches are not interrupted; their results are just not waited for
+                searches.add(CompletableFuture
+                        .supplyAsync(() -> search(collection(name, generation), queryEmbedding, queryText, maxResults),
+                                fanOutExecutor)
+                        .orTimeout(collectionTimeoutMs, TimeUnit.MILLISECONDS)
+                        .exceptionally(error -> skipped(name, error)));
+            } catch (RejectedExecutionException e) {
+                searches.add(CompletableFuture.completedFuture(skipped(name, e)));
+            }
+        }
+        CompletableFuture.allOf(searches.toArray(CompletableFuture[]::new)).join();
+
+        List<Candidates> candidates = new ArrayList<>(searches.size());
+        for (CompletableFuture<Candidates> search : searches) {
+            candidates.add(search.join());
+        }
+        return fuse(candidates, maxResults);
+    }
+
+    private CollectionIndex collection(String name, int generation) {
+        return generation < 0 ? collectionRegistry.get(name) : collectionRegistry.get(name, generation);
+    }
+
+    private Candidates search(CollectionIndex collection, Embedding queryEmbedding, String queryText,
+                              int maxResults) {
+        List<EmbeddingMatch<TextSegment>> vectorMatches = collection.embeddingStore().search(EmbeddingSearchRequest.builder()
+                .queryEmbedding(queryEmbedding)
+                .maxResults(maxResults)
+                .build()).matches();
+        if (!hybrid) {
+            return new Candidates(vectorMatches, List.of());
+        }
+        List<LexicalIndex.Hit> lexicalHits = collection.lexicalIndex().search(queryText, maxResults);
+        log.debug("Retrieved {} vector and {} lexical candidates from {}",
+                vectorMatches.size(), lexicalHits.size(), collection.name());
+        return new Candidates(vectorMatches, lexicalHits);
+    }
+
+    /**
+     * Merges the candidates of all searched collections into one vector list ranked
+     * by similarity and one lexical list ranked by BM25 score, then fuses the two.
+     * The same text may be stored in several collections; it counts once, with its
+     * best score in each list.
+     */
+    private List<EmbeddingMatch<TextSegment>> fuse(List<Candidates> candidates, int maxResults) {
+        Map<String, EmbeddingMatch<TextSegment>> vectorByText = new HashMap<>();
+        Map<String, LexicalIndex.Hit> lexicalByText = new HashMap<>();
+        for (Candidates c : candidates) {
+            for (EmbeddingMatch<TextSegment> match : c.vectorMatches()) {
+                vectorByText.merge(match.embedded().text(), match, (a, b) -> BEST_FIRST.compare(a, b) <= 0 ? a : b);
+            }
+            for (LexicalIndex.Hit hit : c.lexicalHits()) {
+                lexicalByText.merge(hit.segment().text(), hit, (a, b) -> BEST_HIT_FIRST.compare(a, b) <= 0 ? a : b);
+            }
+        }
+        if (!hybrid) {
+            return top(vectorByText.values(), maxResults);
+        }
+
+        List<EmbeddingMatch<TextSegment>> vectorMatches = new ArrayList<>(vectorByText.values());
+        vectorMatches.sort(BEST_FIRST);
+        List<LexicalIndex.Hit> lexicalHits = new ArrayList<>(lexicalByText.values());
+        lexicalHits.sort(BEST_HIT_FIRST);
+
+        Map<String, Fused> fused = new HashMap<>();
+        for (int rank = 0; rank < vectorMatches.size(); rank++) {
+            EmbeddingMatch<TextSegment> match = vectorMatches.get(rank);
+            fused.computeIfAbsent(match.embedded().text(),
+                            text -> new Fused(match.embeddingId(), match.embedding(), match.embedded()))
+                    .score += 1.0 / (rrfK + rank + 1);
+        }
+        for (int rank = 0; rank < lexicalHits.size(); rank++) {
+            LexicalIndex.Hit hit = lexicalHits.get(rank);
+            fused.computeIfAbsent(hit.segment().text(), text -> new Fused(hit.id(), null, hit.segment()))
+                    .score += 1.0 / (rrfK + rank + 1);
+        }
+
+        List<EmbeddingMatch<TextSegment>> results = new ArrayList<>(fused.size());
+        for (Fused f : fused.values()) {
+            results.add(new EmbeddingMatch<>(f.score, f.id, f.embedding, f.segment));
+        }
+        return top(results, maxResults);
+    }
+
+    /**
+     * The {@code maxResults} best matches, best first, kept in a min-heap of that size.
+     */
+    private static List<EmbeddingMatch<TextSegment>> top(Iterable<EmbeddingMatch<TextSegment>> matches,
+                                                         int maxResults) {
+        if (maxResults <= 0) {
+            return List.of();
+        }
+        PriorityQueue<EmbeddingMatch<TextSegment>> heap = new PriorityQueue<>(maxResults + 1, BEST_FIRST.reversed());
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            if (heap.size() < maxResults) {
+                heap.offer(match);
+            } else if (BEST_FIRST.compare(match, heap.peek()) < 0) {
+                heap.poll();
+                heap.offer(match);
+            }
+        }
+        @SuppressWarnings("unchecked")
+        EmbeddingMatch<TextSegment>[] best = (EmbeddingMatch<TextSegment>[]) new EmbeddingMatch<?>[heap.size()];
+        for (int i = best.length - 1; i >= 0; i--) {
+            best[i] = heap.poll();
+        }
+        return Arrays.asList(best);
+    }
+
+    private Candidates skipped(String collection, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof RejectedExecutionException) {
+            rejections.increment();
+            log.warn("Search pool is full, leaving collection {} out", collection);
+        } else if (cause instanceof TimeoutException) {
+            timeouts.increment();
+            log.warn("Search in collection {} took longer than {} ms, leaving it out", collection, collectionTimeoutMs);
+        } else {
+            failures.increment();
+            log.warn("Search in collection {} failed, leaving it out: {}", collection, cause.getMessage());
+        }
+        return new Candidates(List.of(), List.of());
+    }
+
+    private record Candidates(List<EmbeddingMatch<TextSegment>> vectorMatches, List<LexicalIndex.Hit> lexicalHits) {
+    }
+
+    private static final class Fused {
+
+        private final String id;
+        private final Embedding embedding;
+        private final TextSegment segment;
+        private double score;
+
+        private Fused(String id, Embedding embedding, TextSegment segment) {
+            this.id = id;
+            this.embedding = embedding;
+            this.segment = segment;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.ragdemo.service;
+
+import com.ragdemo.entity.CollectionSegment;
+import com.ragdemo.entity.SegmentEmbedding;
+import com.ragdemo.repository.CollectionSegmentRepository;
+import com.ragdemo.repository.SegmentEmbeddingRepository;
+import com.ragdemo.vectorstore.DefaultCollectionState;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Persistent index of segment content hashes per embedding model, used to skip
+ * re-embedding and duplicate vectors when the same content is uploaded again.
+ * Which segments a collection holds is recorded on the segment itself for the
+ * default collection and in {@link CollectionSegment} rows for the others.
+ * <p>
+ * Storing content is serialised per content hash with {@link #withHashesLocked},
+ * so two uploads of the same segment cannot both add a vector for it.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class SegmentIndexService {
+
+    private final SegmentEmbeddingRepository segmentEmbeddingRepository;
+    private final CollectionSegmentRepository collectionSegmentRepository;
+    private final ActiveIndex activeIndex;
+    // Only present for Chroma, whose default collection is checked at startup
+    private final Optional<DefaultCollectionState> defaultCollectionState;
+
+    @Value("${chroma.collection-name:rag-documents}")
+    private String defaultCollection;
+
+    private final ReentrantLock[] hashLocks = newLocks(64);
+
+    @PostConstruct
+    void resetStoredMarkers() {
+        if (defaultCollectionState.isEmpty() || !defaultCollectionState.get().needsReindex()) {
+            return;
+        }
+        // The default collection no longer holds what was recorded as stored. Cached
+        // vectors stay valid and are added again by the DefaultCollectionReindexer.
+        int flagged = segmentEmbeddingRepository.markForRefill(activeIndex.modelName());
+        if (flagged > 0) {
+            log.info("Flagged {} segments of the default collection for refilling", flagged);
+        }
+    }
+
+    /**
+     * Forgets where segments were stored under {@code modelName}, in all collections.
+     */
+    public void clearStoredMarkers(String modelName) {
+        segmentEmbeddingRepository.clearEmbeddingIds(modelName);
+        collectionSegmentRepository.deleteByModelName(modelName);
+    }
+
+    /**
+     * How many segments are stored under {@code modelName}, summed over all collections.
+     */
+    public long countStored(String modelName) {
+        return segmentEmbeddingRepository.countByModelNameAndEmbeddingIdIsNotNull(modelName)
+                + collectionSegmentRepository.countByModelName(modelName);
+    }
+
+    /**
+     * The default collection and every other collection holding segments under {@code modelName}.
+     */
+    public List<String> collectionNames(String modelName) {
+        List<String> names = new ArrayList<>();
+        names.add(defaultCollection);
+        collectionSegmentRepository.findCollectionNames(modelName).stream()
+                .filter(name -> !name.equals(defaultCollection))
+                .forEach(names::add);
+        return names;
+    }
+
+    /**
+     * Marks the refill of the default collection as done.
+     */
+    public void finishRefill() {
+        segmentEmbeddingRepository.clearRefill();
+    }
+
+    public String hash(TextSegment segment) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(segment.text().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Runs {@code action} while no other caller holds the lock of any of
+     * {@code contentHashes}. Callers check what is indexed and stored, add the
+     * vectors that are missing and record them all inside {@code action}.
+     */
+    public <T> T withHashesLocked(Collection<String> contentHashes, Supplier<T> action) {
+        // Taken in index order, so callers with overlapping hashes cannot deadlock
+        Set<Integer> stripes = new TreeSet<>();
+        contentHashes.forEach(hash -> stripes.add(Math.floorMod(hash.hashCode(), hashLocks.length)));
+        List<ReentrantLock> held = new ArrayList<>(stripes.size());
+        try {
+            for (int stripe : stripes) {
+                hashLocks[stripe].lock();
+                held.add(hashLocks[stripe]);
+            }
+            return action.get();
+        } finally {
+            held.forEach(ReentrantLock::unlock);
+        }
+    }
+
+    public Map<String, SegmentEmbedding> lookup(String modelName, Collection<String> contentHashes) {
+        return segmentEmbeddingRepository.findByModelNameAndContentHashIn(modelName, contentHashes)
+                .stream()
+                .collect(Collectors.toMap(SegmentEmbedding::getContentHash, Function.identity()));
+    }
+
+    private static ReentrantLock[] newLocks(int count) {
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    public SegmentEmbedding newEntry(String modelName, String contentHash, TextSegment segment, Embedding embedding) {
+        SegmentEmbedding entry = new SegmentEmbedding();
+        entry.setContentHash(contentHash);
+        entry.setModelName(modelName);
+        entry.setText(segment.text());
+        entry.setVector(toBytes(embedding.vector()));
+        return entry;
+    }
+
+    public void record(List<SegmentEmbedding> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<SegmentEmbedding> newEntries = entries.stream().filter(entry -> entry.getId() == null).toList();
+        try {
+            segmentEmbeddingRepository.saveAll(entries);
+        } catch (DataIntegrityViolationException e) {
+            // A concurrent upload indexed some of the same content; keep whatever we can
+            log.debug("Batch insert hit an existing segment hash, saving individually");
+            newEntries.forEach(entry -> entry.setId(null));
+            for (SegmentEmbedding entry : entries) {
+                try {
+                    segmentEmbeddingRepository.save(entry);
+                } catch (DataIntegrityViolationException ignored) {
+                    log.debug("Segment {} already indexed", entry.getContentHash());
+                }
+            }
+        }
+    }
+
+    /**
+     * Content hashes of the {@code entries} indexed under {@code modelName} that are
+     * already stored in {@code collection}.
+     */
+    public Set<String> storedHashes(String collection, String modelName, Collection<SegmentEmbedding> entries) {
+        if (defaultCollection.equals(collection)) {
+            return entries.stream()
+                    .filter(entry -> entry.getEmbeddingId() != null)
+                    .map(SegmentEmbedding::getContentHash)
+                    .collect(Collectors.toSet());
+        }
+        if (entries.isEmpty()) {
+            return Set.of();
+        }
+        return collectionSegmentRepository.findByCollectionNameAndModelNameAndContentHashIn(collection,
+                        modelName, entries.stream().map(SegmentEmbedding::getContentHash).toList())
+                .stream()
+                .map(CollectionSegment::getContentHash)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Records {@code entries}, indexed under {@code modelName}, and that they were
+     * stored in {@code collection} under the embedding ids at the same positions.
+     */
+    public void recordStored(String collection, String modelName, List<SegmentEmbedding> entries,
+                             List<String> embeddingIds) {
+        if (defaultCollection.equals(collection)) {
+            for (int i = 0; i < entries.size(); i++) {
+                entries.get(i).setEmbeddingId(embeddingIds.get(i));
+            }
+            record(entries);
+            return;
+        }
+
+        record(entries.stream().filter(entry -> entry.getId() == null).toList());
+        List<CollectionSegment> markers = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            markers.add(new CollectionSegment(null, collection, modelName,
+                    entries.get(i).getContentHash(), embeddingIds.get(i)));
+        }
+        try {
+            collectionSegmentRepository.saveAll(markers);
+        } catch (DataIntegrityViolationException e) {
+            log.debug("Batch insert hit an existing marker in {}, saving individually", collection);
+            for (CollectionSegment marker : markers) {
+                marker.setId(null);
+                try {
+                    collectionSegmentRepository.save(marker);
+                } catch (DataIntegrityViolationException ignored) {
+                    log.debug("Segment {} already stored in {}", marker.getContentHash(), collection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the text of every segment stored in {@code collection} under
+     * {@code modelName} to {@code action}, {@code pageSize} rows at a time.
+     */
+    public void forEachStoredText(String collection, String modelName, int pageSize,
+                                  Consumer<List<SegmentEmbeddingRepository.StoredText>> action) {
+        boolean isDefault = defaultCollection.equals(collection);
+        long afterId = 0;
+        List<SegmentEmbeddingRepository.StoredText> page;
+        do {
+            page = isDefault
+                    ? segmentEmbeddingRepository.findStoredText(modelName, afterId, Limit.of(pageSize))
+                    : collectionSegmentRepository.findStoredText(collection, modelName, afterId, Limit.of(pageSize));
+            if (!page.isEmpty()) {
+                action.accept(page);
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == pageSize);
+    }
+
+    /**
+     * Whether segments the default collection lost are still waiting to be added again.
+     */
+    public boolean hasPendingRefill() {
+        return segmentEmbeddingRepository.existsByRefillTrue();
+    }
+
+    /**
+     * Hands every segment the default collection lost to {@code action},
+     * {@code pageSize} rows at a time. Segments only stored in other collections
+     * are not among them.
+     */
+    public void forEachRefillText(int pageSize, Consumer<List<SegmentEmbeddingRepository.StoredText>> action) {
+        long afterId = 0;
+        List<SegmentEmbeddingRepository.StoredText> page;
+        do {
+            page = segmentEmbeddingRepository.findRefillText(afterId, Limit.of(pageSize));
+            if (!page.isEmpty()) {
+                action.accept(page);
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == pageSize);
+    }
+
+    /**
+     * Up to {@code limit} segments, ordered by id after {@code afterId}, that are stored
+     * in {@code collection} under {@code modelName} but not under {@code targetModelName}.
+     */
+    public List<SegmentEmbedding> findStoredWithoutTarget(String collection, String modelName, String targetModelName,
+                                                          long afterId, int limit) {
+        return defaultCollection.equals(collection)
+                ? segmentEmbeddingRepository.findStoredWithoutTarget(modelName, targetModelName, afterId,
+                        Limit.of(limit))
+                : collectionSegmentRepository.findStoredWithoutTarget(collection, modelName, targetModelName, afterId,
+                        Limit.of(limit));
+    }
+
+    public Embedding toEmbedding(SegmentEmbedding entry) {
+        ByteBuffer buffer = ByteBuffer.wrap(entry.getVector()).order(ByteOrder.LITTLE_ENDIAN);
+        float[] vector = new float[entry.getVector().length / Float.BYTES];
+        buffer.asFloatBuffer().get(vector);
+        return Embedding.from(vector);
+    }
+
+    private static byte[] toBytes(float[] vector) {
+        ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(vector);
+        return buffer.array();
+    }
+}
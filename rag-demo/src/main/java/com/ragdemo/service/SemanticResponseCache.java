@@ -0,0 +1,133 @@
+package com.ragdemo.service;
+
+import com.ragdemo.vectorstore.VectorMath;
+import dev.langchain4j.data.embedding.Embedding;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Caches generated answers by query embedding. A new question is answered from
+ * the cache when an earlier one is at least {@code similarity-threshold} cosine
+ * similar and the corpus has not changed since that answer was generated.
+ * Answers only match questions of the same scope, i.e. the same set of
+ * collections and the same earlier turns, since either would change the answer.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class SemanticResponseCache {
+
+    private final CorpusVersion corpusVersion;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rag.answer-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${rag.answer-cache.similarity-threshold:0.95}")
+    private double similarityThreshold;
+
+    @Value("${rag.answer-cache.max-entries:1000}")
+    private int maxEntries;
+
+    @Value("${rag.answer-cache.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    // Most recently used entries are kept at the end
+    private final List<CachedAnswer> entries = new ArrayList<>();
+    private long cachedVersion;
+
+    private Counter hits;
+    private Counter misses;
+
+    @PostConstruct
+    void init() {
+        hits = Counter.builder("rag.answer-cache.requests").tag("result", "hit").register(meterRegistry);
+        misses = Counter.builder("rag.answer-cache.requests").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("rag.answer-cache.size", this, SemanticResponseCache::size).register(meterRegistry);
+    }
+
+    public Optional<String> lookup(Embedding queryEmbedding, String scope) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        float[] query = VectorMath.normalize(queryEmbedding.vector());
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            invalidateIfStale();
+            CachedAnswer best = null;
+            double bestScore = similarityThreshold;
+            for (CachedAnswer entry : entries) {
+                if (entry.expiresAt <= now || entry.vector.length != query.length || !entry.scope.equals(scope)) {
+                    continue;
+                }
+                double score = VectorMath.dot(query, entry.vector);
+                if (score >= bestScore) {
+                    best = entry;
+                    bestScore = score;
+                }
+            }
+            if (best == null) {
+                misses.increment();
+                return Optional.empty();
+            }
+            entries.remove(best);
+            entries.add(best);
+            hits.increment();
+            log.debug("Answer cache hit (similarity {})", String.format("%.3f", bestScore));
+            return Optional.of(best.answer);
+        }
+    }
+
+    /**
+     * Stores an answer generated against {@code version} of the corpus. Answers
+     * that raced with an ingestion are dropped rather than cached as current.
+     */
+    public void put(Embedding queryEmbedding, String scope, String answer, long version) {
+        if (!enabled || answer == null || answer.isBlank()) {
+            return;
+        }
+        float[] vector = VectorMath.normalize(queryEmbedding.vector());
+        long expiresAt = System.currentTimeMillis() + ttlMinutes * 60_000;
+
+        synchronized (this) {
+            invalidateIfStale();
+            if (version != cachedVersion) {
+                return;
+            }
+            entries.removeIf(entry -> entry.expiresAt <= System.currentTimeMillis());
+            while (entries.size() >= maxEntries) {
+                entries.remove(0);
+            }
+            entries.add(new CachedAnswer(vector, scope, answer, expiresAt));
+        }
+    }
+
+    private synchronized int size() {
+        return entries.size();
+    }
+
+    private void invalidateIfStale() {
+        long current = corpusVersion.current();
+        if (current != cachedVersion) {
+            if (!entries.isEmpty()) {
+                log.info("Corpus changed, dropping {} cached answers", entries.size());
+            }
+            entries.clear();
+            cachedVersion = current;
+        }
+    }
+
+    private record CachedAnswer(float[] vector, String scope, String answer, long expiresAt) {
+    }
+}
@@ -0,0 +1,236 @@
+package com.ragdemo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Batches streamed tokens into fewer SSE events.
+ * <p>
+ * Works like Nagle's algorithm: a token is sent right away when nothing has been
+ * sent for {@code max-delay-ms} (so the first token and slow streams are not
+ * delayed). Otherwise it is buffered until {@code max-chars} have accumulated or
+ * the delay since the last send runs out. Each batch is one event, which the
+ * emitter writes with a single flush.
+ * <p>
+ * Handing a token over never blocks: it is appended to the sink's buffer, and
+ * writes to the client happen on a separate writer pool, one at a time per sink.
+ * Tokens therefore arrive on the Ollama client's threads without those ever
+ * waiting on a client socket. A client that falls more than
+ * {@code max-buffered-chars} behind is dropped like one that disconnected.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SseTokenCoalescer {
+
+    // Stands in for a sink's close callback once it has run
+    private static final Runnable NOTHING = () -> {
+    };
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${chat.streaming.coalesce.max-chars:64}")
+    private int maxChars;
+
+    @Value("${chat.streaming.coalesce.max-delay-ms:20}")
+    private long maxDelayMs;
+
+    @Value("${chat.streaming.writer-threads:8}")
+    private int writerThreads;
+
+    @Value("${chat.streaming.max-buffered-chars:65536}")
+    private int maxBufferedChars;
+
+    private ScheduledThreadPoolExecutor scheduler;
+    private ExecutorService writers;
+    private DistributionSummary tokensPerEvent;
+    private Counter slowClients;
+
+    @PostConstruct
+    void init() {
+        scheduler = new ScheduledThreadPoolExecutor(1, new CustomizableThreadFactory("sse-flush-"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        // A sink has at most one write queued or running, so the queue is bounded by the open streams
+        writers = Executors.newFixedThreadPool(writerThreads, new CustomizableThreadFactory("sse-write-"));
+        tokensPerEvent = DistributionSummary.builder("rag.chat.sse.tokens-per-event")
+                .description("Tokens coalesced into one SSE event")
+                .register(meterRegistry);
+        slowClients = Counter.builder("rag.chat.sse.slow-clients")
+                .description("Streams dropped because the client fell too far behind")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        scheduler.shutdownNow();
+        writers.shutdownNow();
+    }
+
+    /**
+     * Starts a sink that writes {@code token} events to {@code emitter}. A failed
+     * write, or a client that does not keep up, is reported to {@code onSendFailure}
+     * and closes the sink.
+     */
+    public TokenSink open(SseEmitter emitter, Consumer<IOException> onSendFailure) {
+        return new TokenSink(emitter, onSendFailure);
+    }
+
+    public final class TokenSink implements Consumer<String> {
+
+        private final SseEmitter emitter;
+        private final Consumer<IOException> onSendFailure;
+        private final long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        private final StringBuilder pending = new StringBuilder();
+        private int pendingTokens;
+        private long lastSendNanos;
+        private boolean sentAny;
+        private boolean closed;
+        private boolean failed;
+        private boolean writing;
+        private Runnable afterClose;
+        private ScheduledFuture<?> scheduledFlush;
+
+        private TokenSink(SseEmitter emitter, Consumer<IOException> onSendFailure) {
+            this.emitter = emitter;
+            this.onSendFailure = onSendFailure;
+        }
+
+        @Override
+        public void accept(String token) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                pending.append(token);
+                pendingTokens++;
+                if (pending.length() <= maxBufferedChars) {
+                    long sinceLastSend = System.nanoTime() - lastSendNanos;
+                    if (!sentAny || sinceLastSend >= maxDelayNanos || pending.length() >= maxChars) {
+                        startWrite();
+                    } else if (scheduledFlush == null) {
+                        scheduledFlush = scheduler.schedule(this::flush, maxDelayNanos - sinceLastSend,
+                                TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+                closed = true;
+                failed = true;
+                pending.setLength(0);
+                cancelScheduledFlush();
+            }
+            slowClients.increment();
+            onSendFailure.accept(new IOException("Client fell more than " + maxBufferedChars + " chars behind"));
+        }
+
+        public synchronized void flush() {
+            if (!closed && pending.length() > 0) {
+                startWrite();
+            }
+        }
+
+        /**
+         * Stops accepting tokens, sends whatever is still buffered and then runs
+         * {@code afterClose} on the writer, so it can send closing events in order.
+         * Only the first call has an effect.
+         */
+        public synchronized void close(Runnable afterClose) {
+            if (this.afterClose != null) {
+                return;
+            }
+            closed = true;
+            this.afterClose = afterClose;
+            startWrite();
+        }
+
+        private void startWrite() {
+            cancelScheduledFlush();
+            if (!writing) {
+                writing = true;
+                writers.execute(this::write);
+            }
+        }
+
+        /**
+         * Writes the buffer until it is empty, outside the lock so tokens keep
+         * arriving while the client socket is slow.
+         */
+        private void write() {
+            while (true) {
+                String data;
+                int tokens;
+                Runnable finish;
+                synchronized (this) {
+                    if (failed || pending.length() == 0) {
+                        writing = false;
+                        finish = closed ? afterClose : null;
+                        if (finish == null) {
+                            return;
+                        }
+                        afterClose = NOTHING;
+                        data = null;
+                        tokens = 0;
+                    } else {
+                        finish = null;
+                        data = pending.toString();
+                        tokens = pendingTokens;
+                        pending.setLength(0);
+                        pendingTokens = 0;
+                        lastSendNanos = System.nanoTime();
+                        sentAny = true;
+                    }
+                }
+                if (finish != null) {
+                    try {
+                        finish.run();
+                    } catch (RuntimeException e) {
+                        // Leaves the emitter to its timeout, but keeps the writer thread
+                        log.warn("Closing an SSE stream failed: {}", e.getMessage());
+                    }
+                    return;
+                }
+                tokensPerEvent.record(tokens);
+                try {
+                    // Send tokens exactly as received - preserve all formatting
+                    emitter.send(SseEmitter.event().name("token").data(data));
+                } catch (IOException e) {
+                    markFailed();
+                    onSendFailure.accept(e);
+                } catch (IllegalStateException e) {
+                    // The emitter was already completed (timeout or client error), nothing left to write to
+                    markFailed();
+                }
+            }
+        }
+
+        private synchronized void markFailed() {
+            closed = true;
+            failed = true;
+            pending.setLength(0);
+            cancelScheduledFlush();
+        }
+
+        private void cancelScheduledFlush() {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.ragdemo.vectorstore;
+
+/**
+ * What startup found in the default collection of an external embedding store,
+ * compared with what the segment index records as stored there.
+ */
+public record DefaultCollectionState(Outcome outcome, String reason) {
+
+    public enum Outcome {
+        /** The collection holds what the segment index says; nothing to do. */
+        KEPT,
+        /** The collection was missing or emptied; it has to be filled again. */
+        MISSING,
+        /** The collection held vectors that do not fit the current model and was recreated. */
+        RECREATED
+    }
+
+    /**
+     * Whether the stored markers of the segment index are stale and the
+     * collection has to be filled again from the index.
+     */
+    public boolean needsReindex() {
+        return outcome != Outcome.KEPT;
+    }
+}
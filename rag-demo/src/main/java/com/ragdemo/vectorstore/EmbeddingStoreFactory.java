@@ -0,0 +1,16 @@
+package com.ragdemo.vectorstore;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+
+import java.io.IOException;
+
+/**
+ * Opens the embedding store of a named collection with the backend selected by
+ * {@code vector-store.type}, creating it if it does not exist yet.
+ */
+@FunctionalInterface
+public interface EmbeddingStoreFactory {
+
+    EmbeddingStore<TextSegment> open(String collectionName) throws IOException;
+}
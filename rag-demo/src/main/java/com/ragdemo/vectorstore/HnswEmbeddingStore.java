@@ -0,0 +1,584 @@
+package com.ragdemo.vectorstore;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-process approximate nearest neighbour store backed by an HNSW graph.
+ * <p>
+ * Vectors are normalized on insert and kept in one contiguous {@code float[]};
+ * each node's links live in a single {@code int[]} holding all of its layers.
+ * Writers take an exclusive lock, searches share a read lock. The whole index
+ * is periodically written to a memory-mapped snapshot file and reloaded from
+ * it on startup. Removed entries are tombstoned and skipped in results.
+ */
+@Slf4j
+public class HnswEmbeddingStore implements EmbeddingStore<TextSegment>, PersistentStore {
+
+    private static final int MAGIC = 0x57534E48; // "HNSW"
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path snapshotFile;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Snapshots share the read lock with searches but all write the same temp file
+    private final ReentrantLock persistLock = new ReentrantLock();
+    private final ThreadLocal<Visited> visited = ThreadLocal.withInitial(Visited::new);
+
+    private int dimension;
+    private int size;
+    private float[] vectors = new float[0];
+    private String[] ids = new String[0];
+    private TextSegment[] segments = new TextSegment[0];
+    private int[] levels = new int[0];
+    private int[][] links = new int[0][];
+    private BitSet deleted = new BitSet();
+    private Map<String, Integer> nodesById = new HashMap<>();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private boolean dirty;
+
+    public HnswEmbeddingStore(Path snapshotFile, int m, int efConstruction, int efSearch) throws IOException {
+        this.snapshotFile = snapshotFile;
+        this.m = m;
+        this.maxM0 = m * 2;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1 / Math.log(m);
+        if (Files.exists(snapshotFile)) {
+            load();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size - deleted.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // --- EmbeddingStore ----------------------------------------------------------------------
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = UUID.randomUUID().toString();
+        add(id, embedding);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        insertAll(List.of(id), List.of(embedding), null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment segment) {
+        String id = UUID.randomUUID().toString();
+        insertAll(List.of(id), List.of(embedding), Arrays.asList(segment));
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> newIds = randomIds(embeddings.size());
+        insertAll(newIds, embeddings, null);
+        return newIds;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+        if (embedded.size() != embeddings.size()) {
+            throw new IllegalArgumentException("embeddings and embedded must have the same size");
+        }
+        List<String> newIds = randomIds(embeddings.size());
+        insertAll(newIds, embeddings, embedded);
+        return newIds;
+    }
+
+    @Override
+    public void removeAll(Collection<String> idsToRemove) {
+        lock.writeLock().lock();
+        try {
+            for (String id : idsToRemove) {
+                Integer node = nodesById.remove(id);
+                if (node != null) {
+                    deleted.set(node);
+                    dirty = true;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        lock.writeLock().lock();
+        try {
+            for (int node = 0; node < size; node++) {
+                if (!deleted.get(node) && segments[node] != null && filter.test(segments[node].metadata())) {
+                    nodesById.remove(ids[node]);
+                    deleted.set(node);
+                    dirty = true;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        lock.writeLock().lock();
+        try {
+            dimension = 0;
+            size = 0;
+            vectors = new float[0];
+            ids = new String[0];
+            segments = new TextSegment[0];
+            levels = new int[0];
+            links = new int[0][];
+            deleted = new BitSet();
+            nodesById = new HashMap<>();
+            entryPoint = -1;
+            maxLevel = -1;
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        float[] query = VectorMath.normalize(request.queryEmbedding().vector());
+        int maxResults = request.maxResults();
+        Filter filter = request.filter();
+
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0 || query.length != dimension) {
+                return new EmbeddingSearchResult<>(List.of());
+            }
+
+            int ep = entryPoint;
+            for (int level = maxLevel; level > 0; level--) {
+                ep = greedyClosest(query, ep, level);
+            }
+            // Over-fetch when tombstones or a filter will drop some of the candidates
+            int ef = Math.max(efSearch, maxResults);
+            if (filter != null || !deleted.isEmpty()) {
+                ef = Math.max(ef, maxResults * 4);
+            }
+            NodeHeap candidates = searchLayer(query, ep, ef, 0);
+
+            int[] nodes = new int[candidates.size()];
+            float[] scores = new float[candidates.size()];
+            for (int i = nodes.length - 1; i >= 0; i--) {
+                scores[i] = candidates.topScore();
+                nodes[i] = candidates.pop();
+            }
+
+            List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(maxResults);
+            for (int i = 0; i < nodes.length && matches.size() < maxResults; i++) {
+                int node = nodes[i];
+                if (deleted.get(node)) {
+                    continue;
+                }
+                double score = RelevanceScore.fromCosineSimilarity(scores[i]);
+                if (score < request.minScore()) {
+                    break;
+                }
+                TextSegment segment = segments[node];
+                if (filter != null && (segment == null || !filter.test(segment.metadata()))) {
+                    continue;
+                }
+                matches.add(new EmbeddingMatch<>(score, ids[node], embeddingOf(node), segment));
+            }
+            return new EmbeddingSearchResult<>(matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // --- graph construction ------------------------------------------------------------------
+
+    private void insertAll(List<String> newIds, List<Embedding> embeddings, List<TextSegment> embedded) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < embeddings.size(); i++) {
+                insert(newIds.get(i), embeddings.get(i).vector(), embedded == null ? null : embedded.get(i));
+            }
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void insert(String id, float[] vector, TextSegment segment) {
+        if (dimension == 0) {
+            dimension = vector.length;
+        } else if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected embedding of dimension " + dimension
+                    + " but got " + vector.length);
+        }
+        Integer existing = nodesById.get(id);
+        if (existing != null) {
+            deleted.set(existing);
+        }
+
+        int node = size;
+        ensureCapacity(node + 1);
+        System.arraycopy(VectorMath.normalize(vector), 0, vectors, node * dimension, dimension);
+        int level = (int) Math.floor(-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        ids[node] = id;
+        segments[node] = segment;
+        levels[node] = level;
+        links[node] = new int[linkOffset(level + 1)];
+        nodesById.put(id, node);
+        size++;
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        int ep = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            ep = greedyClosest(vectors, node * dimension, ep, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            NodeHeap candidates = searchLayer(vectors, node * dimension, ep, efConstruction, l);
+            int[] sorted = drainDescending(candidates);
+            int maxConnections = l == 0 ? maxM0 : m;
+            int[] neighbours = selectNeighbours(node, sorted, m);
+            setLinks(node, l, neighbours, neighbours.length);
+            for (int neighbour : neighbours) {
+                connect(neighbour, node, l, maxConnections);
+            }
+            ep = sorted[0];
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Adds {@code node} to {@code target}'s links on {@code level}, pruning with the
+     * neighbour heuristic when the list is full.
+     */
+    private void connect(int target, int node, int level, int maxConnections) {
+        int[] targetLinks = links[target];
+        int offset = linkOffset(level);
+        int count = targetLinks[offset];
+        if (count < maxConnections) {
+            targetLinks[offset + 1 + count] = node;
+            targetLinks[offset] = count + 1;
+            return;
+        }
+
+        NodeHeap candidates = NodeHeap.max(count + 1);
+        int base = target * dimension;
+        for (int i = 0; i < count; i++) {
+            int existing = targetLinks[offset + 1 + i];
+            candidates.push(existing, VectorMath.dot(vectors, base, vectors, existing * dimension, dimension));
+        }
+        candidates.push(node, VectorMath.dot(vectors, base, vectors, node * dimension, dimension));
+        int[] sorted = new int[candidates.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = candidates.pop();
+        }
+        int[] kept = selectNeighbours(target, sorted, maxConnections);
+        setLinks(target, level, kept, kept.length);
+    }
+
+    /**
+     * HNSW neighbour selection heuristic: a candidate is kept only if it is closer to
+     * the base node than to any neighbour already kept, which spreads links across
+     * clusters. Remaining slots are filled with the closest pruned candidates.
+     */
+    private int[] selectNeighbours(int base, int[] sortedCandidates, int maxConnections) {
+        int[] selected = new int[Math.min(maxConnections, sortedCandidates.length)];
+        boolean[] taken = new boolean[sortedCandidates.length];
+        int count = 0;
+        int baseOffset = base * dimension;
+        for (int i = 0; i < sortedCandidates.length && count < selected.length; i++) {
+            int candidate = sortedCandidates[i];
+            if (candidate == base) {
+                taken[i] = true;
+                continue;
+            }
+            int candidateOffset = candidate * dimension;
+            float toBase = VectorMath.dot(vectors, baseOffset, vectors, candidateOffset, dimension);
+            boolean keep = true;
+            for (int j = 0; j < count; j++) {
+                if (VectorMath.dot(vectors, candidateOffset, vectors, selected[j] * dimension, dimension) > toBase) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[count++] = candidate;
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < sortedCandidates.length && count < selected.length; i++) {
+            if (!taken[i]) {
+                selected[count++] = sortedCandidates[i];
+            }
+        }
+        return count == selected.length ? selected : Arrays.copyOf(selected, count);
+    }
+
+    private void setLinks(int node, int level, int[] neighbours, int count) {
+        int offset = linkOffset(level);
+        links[node][offset] = count;
+        System.arraycopy(neighbours, 0, links[node], offset + 1, count);
+    }
+
+    private int linkOffset(int level) {
+        return level == 0 ? 0 : (maxM0 + 1) + (level - 1) * (m + 1);
+    }
+
+    // --- graph search ------------------------------------------------------------------------
+
+    private int greedyClosest(float[] query, int ep, int level) {
+        return greedyClosest(query, 0, ep, level);
+    }
+
+    private int greedyClosest(float[] query, int queryOffset, int ep, int level) {
+        int current = ep;
+        float best = VectorMath.dot(query, queryOffset, vectors, current * dimension, dimension);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] nodeLinks = links[current];
+            int offset = linkOffset(level);
+            int count = nodeLinks[offset];
+            for (int i = 0; i < count; i++) {
+                int candidate = nodeLinks[offset + 1 + i];
+                float score = VectorMath.dot(query, queryOffset, vectors, candidate * dimension, dimension);
+                if (score > best) {
+                    best = score;
+                    current = candidate;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    private NodeHeap searchLayer(float[] query, int ep, int ef, int level) {
+        return searchLayer(query, 0, ep, ef, level);
+    }
+
+    /**
+     * Best-first search on one layer. Returns a min-heap of the {@code ef} closest
+     * nodes found (lowest similarity on top).
+     */
+    private NodeHeap searchLayer(float[] query, int queryOffset, int ep, int ef, int level) {
+        Visited seen = visited.get();
+        seen.reset(size);
+        NodeHeap candidates = NodeHeap.max(ef * 2);
+        NodeHeap results = NodeHeap.min(ef + 1);
+
+        float epScore = VectorMath.dot(query, queryOffset, vectors, ep * dimension, dimension);
+        seen.mark(ep);
+        candidates.push(ep, epScore);
+        results.push(ep, epScore);
+
+        int offset = linkOffset(level);
+        while (!candidates.isEmpty()) {
+            float candidateScore = candidates.topScore();
+            if (results.size() >= ef && candidateScore < results.topScore()) {
+                break;
+            }
+            int current = candidates.pop();
+            int[] nodeLinks = links[current];
+            if (offset >= nodeLinks.length) {
+                continue;
+            }
+            int count = nodeLinks[offset];
+            for (int i = 0; i < count; i++) {
+                int neighbour = nodeLinks[offset + 1 + i];
+                if (!seen.mark(neighbour)) {
+                    continue;
+                }
+                float score = VectorMath.dot(query, queryOffset, vectors, neighbour * dimension, dimension);
+                if (results.size() < ef || score > results.topScore()) {
+                    candidates.push(neighbour, score);
+                    results.offer(neighbour, score, ef);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static int[] drainDescending(NodeHeap minHeap) {
+        int[] sorted = new int[minHeap.size()];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            sorted[i] = minHeap.pop();
+        }
+        return sorted;
+    }
+
+    private Embedding embeddingOf(int node) {
+        return Embedding.from(Arrays.copyOfRange(vectors, node * dimension, (node + 1) * dimension));
+    }
+
+    private void ensureCapacity(int required) {
+        if (ids.length >= required) {
+            return;
+        }
+        int capacity = Math.max(required, Math.max(1024, ids.length + (ids.length >> 1)));
+        vectors = Arrays.copyOf(vectors, capacity * dimension);
+        ids = Arrays.copyOf(ids, capacity);
+        segments = Arrays.copyOf(segments, capacity);
+        levels = Arrays.copyOf(levels, capacity);
+        links = Arrays.copyOf(links, capacity);
+    }
+
+    private static List<String> randomIds(int count) {
+        List<String> newIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            newIds.add(UUID.randomUUID().toString());
+        }
+        return newIds;
+    }
+
+    // --- persistence -------------------------------------------------------------------------
+
+    @Override
+    public void persist() throws IOException {
+        persistLock.lock();
+        lock.readLock().lock();
+        try {
+            if (!dirty) {
+                return;
+            }
+            Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            Files.createDirectories(snapshotFile.toAbsolutePath().getParent());
+            try (MappedFileOutput out = new MappedFileOutput(tempFile)) {
+                out.putInt(MAGIC);
+                out.putInt(FORMAT_VERSION);
+                out.putInt(dimension);
+                out.putInt(size);
+                out.putInt(entryPoint);
+                out.putInt(maxLevel);
+                out.putInt(m);
+                out.putFloats(vectors, 0, size * dimension);
+                for (int node = 0; node < size; node++) {
+                    byte[] id = ids[node].getBytes(StandardCharsets.UTF_8);
+                    out.putInt(id.length);
+                    out.putBytes(id);
+                    out.putByte((byte) (deleted.get(node) ? 1 : 0));
+                    out.putInt(levels[node]);
+                    out.putInt(links[node].length);
+                    out.putInts(links[node], 0, links[node].length);
+                    byte[] segment = SegmentCodec.encode(segments[node]);
+                    out.putInt(segment.length);
+                    out.putBytes(segment);
+                }
+            }
+            Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+            log.info("Wrote HNSW snapshot with {} vectors to {}", size, snapshotFile);
+        } finally {
+            lock.readLock().unlock();
+            persistLock.unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        try (MappedFileInput in = new MappedFileInput(snapshotFile)) {
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported HNSW snapshot format: " + snapshotFile);
+            }
+            dimension = in.getInt();
+            int count = in.getInt();
+            entryPoint = in.getInt();
+            maxLevel = in.getInt();
+            if (in.getInt() != m) {
+                throw new IOException("HNSW snapshot was built with a different M, delete " + snapshotFile
+                        + " to rebuild it");
+            }
+
+            ensureCapacity(count);
+            in.getFloats(vectors, 0, count * dimension);
+            for (int node = 0; node < count; node++) {
+                ids[node] = new String(in.getBytes(in.getInt()), StandardCharsets.UTF_8);
+                if (in.getByte() == 1) {
+                    deleted.set(node);
+                } else {
+                    nodesById.put(ids[node], node);
+                }
+                levels[node] = in.getInt();
+                links[node] = new int[in.getInt()];
+                in.getInts(links[node], 0, links[node].length);
+                segments[node] = SegmentCodec.decode(in.getBuffer(in.getInt()));
+            }
+            size = count;
+        }
+        log.info("Loaded HNSW snapshot with {} vectors from {}", size, snapshotFile);
+    }
+
+    /**
+     * Per-thread visited marks; bumping the epoch resets them without clearing.
+     */
+    private static final class Visited {
+        private int[] marks = new int[0];
+        private int epoch;
+
+        void reset(int capacity) {
+            if (marks.length < capacity) {
+                marks = new int[Math.max(capacity, marks.length * 2)];
+                epoch = 0;
+            }
+            if (++epoch == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        boolean mark(int node) {
+            if (marks[node] == epoch) {
+                return false;
+            }
+            marks[node] = epoch;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.ragdemo.vectorstore;
+
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index with BM25 scoring, used next to the embedding store
+ * to find exact terms such as part numbers and error codes that embeddings blur.
+ * <p>
+ * Documents are keyed by their embedding store id. Each term keeps a posting list
+ * of (document, term frequency) pairs as delta-encoded varints, so a posting
+ * usually takes two or three bytes. Documents are only ever appended, so
+ * postings stay sorted by document without any merging.
+ */
+public final class LexicalIndex {
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "has", "have", "how", "in", "is",
+            "it", "its", "of", "on", "or", "that", "the", "this", "to", "was", "were", "what", "when", "where",
+            "which", "who", "why", "will", "with", "do", "does", "can", "i", "you", "me", "my", "about");
+
+    private final float k1;
+    private final float b;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Per-thread score accumulator, zeroed again after each search
+    private final ThreadLocal<float[]> scoreBuffers = ThreadLocal.withInitial(() -> new float[0]);
+    private final Map<String, PostingList> postings = new HashMap<>();
+    private final Map<String, Integer> docsById = new HashMap<>();
+    private String[] ids = new String[1024];
+    private TextSegment[] segments = new TextSegment[1024];
+    private int[] lengths = new int[1024];
+    private int docCount;
+    private long totalLength;
+
+    public LexicalIndex(float k1, float b) {
+        this.k1 = k1;
+        this.b = b;
+    }
+
+    /**
+     * A document found by {@link #search}, with its BM25 score.
+     */
+    public record Hit(String id, TextSegment segment, double score) {
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * BM25 inverse document frequency of an already tokenized term; terms that
+     * occur nowhere get the highest value.
+     */
+    public double idf(String term) {
+        lock.readLock().lock();
+        try {
+            PostingList list = postings.get(term);
+            int count = list == null ? 0 : list.count;
+            return Math.log(1 + (docCount - count + 0.5) / (count + 0.5));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes each segment under the id at the same position. Ids that are already
+     * indexed are skipped.
+     */
+    public void addAll(List<String> documentIds, List<TextSegment> documentSegments) {
+        // Tokenize outside the lock so searches are only blocked for the posting appends
+        List<Map<String, Integer>> termCounts = new ArrayList<>(documentSegments.size());
+        int[] docLengths = new int[documentSegments.size()];
+        for (int i = 0; i < documentSegments.size(); i++) {
+            Map<String, Integer> counts = new HashMap<>();
+            List<String> tokens = tokenize(documentSegments.get(i).text());
+            for (String token : tokens) {
+                counts.merge(token, 1, Integer::sum);
+            }
+            termCounts.add(counts);
+            docLengths[i] = tokens.size();
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < documentIds.size(); i++) {
+                String id = documentIds.get(i);
+                if (docsById.containsKey(id)) {
+                    continue;
+                }
+                int doc = docCount++;
+                ensureCapacity(docCount);
+                ids[doc] = id;
+                segments[doc] = documentSegments.get(i);
+                lengths[doc] = docLengths[i];
+                totalLength += docLengths[i];
+                docsById.put(id, doc);
+                for (Map.Entry<String, Integer> term : termCounts.get(i).entrySet()) {
+                    postings.computeIfAbsent(term.getKey(), t -> new PostingList()).add(doc, term.getValue());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to {@code maxResults} documents containing any query term, best BM25 score first.
+     */
+    public List<Hit> search(String query, int maxResults) {
+        List<String> terms = tokenize(query).stream().distinct().toList();
+        if (terms.isEmpty() || maxResults <= 0) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            if (docCount == 0) {
+                return List.of();
+            }
+            List<PostingList> lists = new ArrayList<>(terms.size());
+            boolean anySelective = false;
+            for (String term : terms) {
+                PostingList list = postings.get(term);
+                if (list != null) {
+                    lists.add(list);
+                    anySelective |= list.count * 2 <= docCount;
+                }
+            }
+
+            float averageLength = (float) totalLength / docCount;
+            float[] scores = scoreBuffers.get();
+            if (scores.length < docCount) {
+                scores = new float[docCount + docCount / 4];
+                scoreBuffers.set(scores);
+            }
+            int[] touched = new int[16];
+            int touchedCount = 0;
+            for (PostingList list : lists) {
+                // A term in most documents has an idf near zero; walking its postings
+                // would cost more than everything else while hardly changing the ranking
+                if (anySelective && list.count * 2 > docCount) {
+                    continue;
+                }
+                float idf = (float) Math.log(1 + (docCount - list.count + 0.5) / (list.count + 0.5));
+                int pos = 0;
+                int doc = 0;
+                while (pos < list.size) {
+                    // Each posting is a varint document gap followed by a varint frequency
+                    int gap = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        byte next = list.data[pos++];
+                        gap |= (next & 0x7F) << shift;
+                        if (next >= 0) {
+                            break;
+                        }
+                    }
+                    int frequency = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        byte next = list.data[pos++];
+                        frequency |= (next & 0x7F) << shift;
+                        if (next >= 0) {
+                            break;
+                        }
+                    }
+                    doc += gap;
+                    float norm = k1 * (1 - b + b * lengths[doc] / averageLength);
+                    if (scores[doc] == 0) {
+                        if (touchedCount == touched.length) {
+                            touched = Arrays.copyOf(touched, touchedCount * 2);
+                        }
+                        touched[touchedCount++] = doc;
+                    }
+                    scores[doc] += idf * frequency * (k1 + 1) / (frequency + norm);
+                }
+            }
+
+            NodeHeap top = NodeHeap.min(maxResults);
+            for (int i = 0; i < touchedCount; i++) {
+                top.offer(touched[i], scores[touched[i]], maxResults);
+                scores[touched[i]] = 0;
+            }
+            Hit[] hits = new Hit[top.size()];
+            for (int i = hits.length - 1; i >= 0; i--) {
+                float score = top.topScore();
+                int doc = top.pop();
+                hits[i] = new Hit(ids[doc], segments[doc], score);
+            }
+            return Arrays.asList(hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lower-cased alphanumeric runs. Runs joined by {@code - _ . /} (as in
+     * {@code XJ-1414} or {@code 3.2.1}) are kept whole in addition to their parts.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            if (!Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int parts = 0;
+            int partStart = i;
+            while (true) {
+                while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                    i++;
+                }
+                addToken(tokens, text.substring(partStart, i));
+                parts++;
+                if (i + 1 < length && isJoiner(text.charAt(i)) && Character.isLetterOrDigit(text.charAt(i + 1))) {
+                    partStart = ++i;
+                } else {
+                    break;
+                }
+            }
+            if (parts > 1) {
+                addToken(tokens, text.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isJoiner(char c) {
+        return c == '-' || c == '_' || c == '.' || c == '/';
+    }
+
+    private static void addToken(List<String> tokens, String token) {
+        String lower = token.toLowerCase(Locale.ROOT);
+        if (!STOP_WORDS.contains(lower)) {
+            tokens.add(lower);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            int newLength = Math.max(capacity, ids.length * 2);
+            ids = Arrays.copyOf(ids, newLength);
+            segments = Arrays.copyOf(segments, newLength);
+            lengths = Arrays.copyOf(lengths, newLength);
+        }
+    }
+
+    private static final class PostingList {
+
+        private byte[] data = new byte[8];
+        private int size;
+        private int count;
+        private int lastDoc;
+
+        void add(int doc, int frequency) {
+            if (size + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            writeVarint(doc - lastDoc);
+            writeVarint(frequency);
+            lastDoc = doc;
+            count++;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                data[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.ragdemo.vectorstore;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable region of a file mapped read-write as a list of equally sized,
+ * little-endian chunks starting at {@code baseOffset}. Mapping a chunk past the
+ * end of the file extends it, so the region grows one chunk at a time.
+ */
+final class MappedChunks {
+
+    private final FileChannel channel;
+    private final long baseOffset;
+    private final int chunkBytes;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    MappedChunks(FileChannel channel, long baseOffset, int chunkBytes) {
+        this.channel = channel;
+        this.baseOffset = baseOffset;
+        this.chunkBytes = chunkBytes;
+    }
+
+    int chunkBytes() {
+        return chunkBytes;
+    }
+
+    int chunkCount() {
+        return chunks.size();
+    }
+
+    MappedByteBuffer chunk(int index) {
+        return chunks.get(index);
+    }
+
+    /**
+     * Maps chunks until the region holds at least {@code bytes} bytes.
+     */
+    void ensureCapacity(long bytes) throws IOException {
+        while ((long) chunks.size() * chunkBytes < bytes) {
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE,
+                    baseOffset + (long) chunks.size() * chunkBytes, chunkBytes);
+            chunk.order(ByteOrder.LITTLE_ENDIAN);
+            chunks.add(chunk);
+        }
+    }
+
+    void put(long position, byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            MappedByteBuffer chunk = chunks.get((int) (position / chunkBytes));
+            int inChunk = (int) (position % chunkBytes);
+            int length = Math.min(chunkBytes - inChunk, bytes.length - offset);
+            chunk.put(inChunk, bytes, offset, length);
+            offset += length;
+            position += length;
+        }
+    }
+
+    void get(long position, byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            MappedByteBuffer chunk = chunks.get((int) (position / chunkBytes));
+            int inChunk = (int) (position % chunkBytes);
+            int length = Math.min(chunkBytes - inChunk, bytes.length - offset);
+            chunk.get(inChunk, bytes, offset, length);
+            offset += length;
+            position += length;
+        }
+    }
+
+    byte getByte(long position) {
+        return chunks.get((int) (position / chunkBytes)).get((int) (position % chunkBytes));
+    }
+
+    void putByte(long position, byte value) {
+        chunks.get((int) (position / chunkBytes)).put((int) (position % chunkBytes), value);
+    }
+
+    int getInt(long position) {
+        byte[] bytes = new byte[Integer.BYTES];
+        get(position, bytes);
+        return (bytes[0] & 0xFF) | (bytes[1] & 0xFF) << 8 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 24;
+    }
+
+    void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * Forgets the current mappings; they are released once unreachable. The file
+     * itself is left as is and gets overwritten as the region grows again.
+     */
+    void reset() {
+        chunks.clear();
+    }
+}
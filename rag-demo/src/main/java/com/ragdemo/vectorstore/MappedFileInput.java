@@ -0,0 +1,98 @@
+package com.ragdemo.vectorstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential little-endian reader over a memory-mapped file, the counterpart
+ * of {@link MappedFileOutput}.
+ */
+final class MappedFileInput implements Closeable {
+
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long length;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    MappedFileInput(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        length = channel.size();
+        remap(0);
+    }
+
+    int getInt() throws IOException {
+        ensure(Integer.BYTES);
+        return window.getInt();
+    }
+
+    byte getByte() throws IOException {
+        ensure(1);
+        return window.get();
+    }
+
+    byte[] getBytes(int count) throws IOException {
+        byte[] bytes = new byte[count];
+        int offset = 0;
+        while (offset < count) {
+            ensure(1);
+            int chunk = Math.min(window.remaining(), count - offset);
+            window.get(bytes, offset, chunk);
+            offset += chunk;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns a buffer over the next {@code count} bytes, positioned at zero.
+     */
+    ByteBuffer getBuffer(int count) throws IOException {
+        return ByteBuffer.wrap(getBytes(count)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    void getInts(int[] values, int offset, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            values[offset + i] = getInt();
+        }
+    }
+
+    void getFloats(float[] values, int offset, int count) throws IOException {
+        int end = offset + count;
+        while (offset < end) {
+            ensure(Float.BYTES);
+            int chunk = Math.min(window.remaining() / Float.BYTES, end - offset);
+            window.asFloatBuffer().get(values, offset, chunk);
+            window.position(window.position() + chunk * Float.BYTES);
+            offset += chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (window.remaining() < bytes) {
+            long position = windowStart + window.position();
+            if (position + bytes > length) {
+                throw new IOException("Unexpected end of snapshot file");
+            }
+            remap(position);
+        }
+    }
+
+    private void remap(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_BYTES, length - start));
+        window.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
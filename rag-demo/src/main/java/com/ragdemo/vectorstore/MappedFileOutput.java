@@ -0,0 +1,94 @@
+package com.ragdemo.vectorstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential little-endian writer over a memory-mapped file. The file is mapped
+ * in windows so snapshots are not limited to the 2 GB of a single mapping.
+ */
+final class MappedFileOutput implements Closeable {
+
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    MappedFileOutput(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        remap(0);
+    }
+
+    long position() {
+        return windowStart + window.position();
+    }
+
+    void putInt(int value) throws IOException {
+        ensure(Integer.BYTES);
+        window.putInt(value);
+    }
+
+    void putByte(byte value) throws IOException {
+        ensure(1);
+        window.put(value);
+    }
+
+    void putBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensure(1);
+            int chunk = Math.min(window.remaining(), bytes.length - offset);
+            window.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    void putInts(int[] values, int offset, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            putInt(values[offset + i]);
+        }
+    }
+
+    void putFloats(float[] values, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            ensure(Float.BYTES);
+            int chunk = Math.min(window.remaining() / Float.BYTES, end - offset);
+            window.asFloatBuffer().put(values, offset, chunk);
+            window.position(window.position() + chunk * Float.BYTES);
+            offset += chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long end = position();
+        window.force();
+        window = null;
+        channel.truncate(end);
+        channel.force(true);
+        channel.close();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (window.remaining() < bytes) {
+            remap(position());
+        }
+    }
+
+    private void remap(long start) throws IOException {
+        if (window != null) {
+            window.force();
+        }
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, start, WINDOW_BYTES);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
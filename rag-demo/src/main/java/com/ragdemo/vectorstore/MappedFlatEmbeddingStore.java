@@ -0,0 +1,660 @@
+package com.ragdemo.vectorstore;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Exact nearest neighbour store that keeps everything in memory-mapped files.
+ * <p>
+ * Normalized vectors live in {@code <name>.vectors} in tiles of
+ * {@value #TILE_ROWS} rows, each tile stored dimension-major so that scoring a
+ * tile is a vectorizable multiply-add (see {@link VectorMath#dotTile}). Ids and
+ * encoded segments are appended to {@code <name>.segments}. Neither is copied
+ * onto the heap: searches copy one tile at a time out of the mapping into a
+ * per-thread buffer, splitting large stores into partitions that are scanned
+ * in parallel. The files are the index, so a restart only re-reads the segment
+ * record offsets.
+ * <p>
+ * With {@link Quantization#INT8} every vector is also kept as one byte per
+ * component plus a scale in {@code <name>.codes}, tiled the same way. Searches
+ * scan the codes, which are a quarter of the size, and rescore the best
+ * {@code rescoreFactor} times {@code maxResults} rows exactly against the float
+ * vectors, so those are only paged in for a few rows per query. Codes missing
+ * for rows written without quantization are computed when the store is opened.
+ */
+@Slf4j
+public class MappedFlatEmbeddingStore implements EmbeddingStore<TextSegment>, PersistentStore {
+
+    private static final int VECTORS_MAGIC = 0x54434556; // "VECT"
+    private static final int SEGMENTS_MAGIC = 0x53474553; // "SEGS"
+    private static final int CODES_MAGIC = 0x38544e51; // "QNT8"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int TARGET_CHUNK_BYTES = 64 * 1024 * 1024;
+    private static final int TILE_ROWS = 128;
+    private static final int MIN_PARTITION_TILES = 128;
+    private static final byte LIVE = 0;
+    private static final byte DELETED = 1;
+
+    /**
+     * How vectors are represented for scanning.
+     */
+    public enum Quantization {
+        NONE, INT8
+    }
+
+    private final Path vectorsFile;
+    private final Path segmentsFile;
+    private final FileChannel vectorsChannel;
+    private final FileChannel segmentsChannel;
+    private final MappedByteBuffer vectorsHeader;
+    private final MappedByteBuffer segmentsHeader;
+    private final MappedChunks segmentRecords;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ThreadLocal<float[]> tileBuffer = ThreadLocal.withInitial(() -> new float[0]);
+    private final ThreadLocal<float[]> tileScores = ThreadLocal.withInitial(() -> new float[TILE_ROWS]);
+    private final ThreadLocal<byte[]> codeBuffer = ThreadLocal.withInitial(() -> new byte[0]);
+    private final ThreadLocal<int[]> codeScores = ThreadLocal.withInitial(() -> new int[TILE_ROWS]);
+    private final Quantization quantization;
+    private final int rescoreFactor;
+    private final Path codesFile;
+    private final FileChannel codesChannel;
+    private final MappedByteBuffer codesHeader;
+
+    private MappedChunks vectorTiles;
+    private final List<FloatBuffer> vectorViews = new ArrayList<>();
+    private MappedChunks codeTiles;
+    private int codeTileBytes;
+    private int dimension;
+    private int tilesPerChunk;
+    private int count;
+    private long segmentsEnd;
+    private long[] recordOffsets = new long[0];
+    private final BitSet deleted = new BitSet();
+    private boolean dirty;
+
+    public MappedFlatEmbeddingStore(Path directory, String name) throws IOException {
+        this(directory, name, Quantization.NONE, 1);
+    }
+
+    public MappedFlatEmbeddingStore(Path directory, String name, Quantization quantization, int rescoreFactor)
+            throws IOException {
+        this.quantization = quantization;
+        this.rescoreFactor = Math.max(1, rescoreFactor);
+        Files.createDirectories(directory);
+        this.vectorsFile = directory.resolve(name + ".vectors");
+        this.segmentsFile = directory.resolve(name + ".segments");
+        this.vectorsChannel = FileChannel.open(vectorsFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.segmentsChannel = FileChannel.open(segmentsFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean existing = vectorsChannel.size() >= HEADER_BYTES && segmentsChannel.size() >= HEADER_BYTES;
+        this.vectorsHeader = mapHeader(vectorsChannel);
+        this.segmentsHeader = mapHeader(segmentsChannel);
+        this.segmentRecords = new MappedChunks(segmentsChannel, HEADER_BYTES, TARGET_CHUNK_BYTES);
+        if (quantization == Quantization.INT8) {
+            this.codesFile = directory.resolve(name + ".codes");
+            this.codesChannel = FileChannel.open(codesFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.codesHeader = mapHeader(codesChannel);
+        } else {
+            // Codes are only trusted if they were kept up to date with every write
+            Files.deleteIfExists(directory.resolve(name + ".codes"));
+            this.codesFile = null;
+            this.codesChannel = null;
+            this.codesHeader = null;
+        }
+        if (existing && vectorsHeader.getInt(0) != 0) {
+            load();
+        } else {
+            writeHeaders();
+        }
+        if (quantization == Quantization.INT8) {
+            syncCodes();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count - deleted.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // --- EmbeddingStore ----------------------------------------------------------------------
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = UUID.randomUUID().toString();
+        append(List.of(id), List.of(embedding), null);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        lock.writeLock().lock();
+        try {
+            // Explicit ids replace earlier entries; finding them costs a scan of the records
+            markDeleted(Set.of(id));
+            append(List.of(id), List.of(embedding), null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment segment) {
+        String id = UUID.randomUUID().toString();
+        append(List.of(id), List.of(embedding), Arrays.asList(segment));
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> newIds = randomIds(embeddings.size());
+        append(newIds, embeddings, null);
+        return newIds;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+        if (embedded.size() != embeddings.size()) {
+            throw new IllegalArgumentException("embeddings and embedded must have the same size");
+        }
+        List<String> newIds = randomIds(embeddings.size());
+        append(newIds, embeddings, embedded);
+        return newIds;
+    }
+
+    @Override
+    public void removeAll(Collection<String> idsToRemove) {
+        lock.writeLock().lock();
+        try {
+            markDeleted(new HashSet<>(idsToRemove));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        lock.writeLock().lock();
+        try {
+            for (int row = 0; row < count; row++) {
+                if (deleted.get(row)) {
+                    continue;
+                }
+                TextSegment segment = segmentOf(row);
+                if (segment != null && filter.test(segment.metadata())) {
+                    delete(row);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        lock.writeLock().lock();
+        try {
+            dimension = 0;
+            count = 0;
+            segmentsEnd = 0;
+            recordOffsets = new long[0];
+            deleted.clear();
+            vectorTiles = null;
+            vectorViews.clear();
+            codeTiles = null;
+            segmentRecords.reset();
+            writeHeaders();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        float[] query = VectorMath.normalize(request.queryEmbedding().vector());
+        int maxResults = request.maxResults();
+        Filter filter = request.filter();
+        // Relevance is (cosine + 1) / 2, so the floor can be applied to raw dot products
+        float minDot = (float) (2 * request.minScore() - 1);
+
+        lock.readLock().lock();
+        try {
+            if (count == 0 || query.length != dimension) {
+                return new EmbeddingSearchResult<>(List.of());
+            }
+
+            int rows = count;
+            int tiles = (rows + TILE_ROWS - 1) / TILE_ROWS;
+            int partitions = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), tiles / MIN_PARTITION_TILES));
+            int tilesPerPartition = (tiles + partitions - 1) / partitions;
+            IntStream partitionIndexes = IntStream.range(0, partitions);
+            if (partitions > 1) {
+                partitionIndexes = partitionIndexes.parallel();
+            }
+            boolean quantized = quantization == Quantization.INT8;
+            // Approximate scores only pick candidates; the floor is applied to exact ones
+            int candidates = quantized ? maxResults * rescoreFactor : maxResults;
+            float scanMinDot = quantized ? Float.NEGATIVE_INFINITY : minDot;
+            QueryCode queryCode = quantized ? QueryCode.of(query) : null;
+            List<NodeHeap> partials = partitionIndexes
+                    .mapToObj(p -> scan(query, p * tilesPerPartition, Math.min(tiles, (p + 1) * tilesPerPartition),
+                            rows, candidates, scanMinDot, filter, queryCode))
+                    .toList();
+
+            NodeHeap top = NodeHeap.min(maxResults + 1);
+            for (NodeHeap partial : partials) {
+                for (int i = 0; i < partial.size(); i++) {
+                    if (!quantized) {
+                        top.offer(partial.nodeAt(i), partial.scoreAt(i), maxResults);
+                        continue;
+                    }
+                    int row = partial.nodeAt(i);
+                    float exact = VectorMath.dot(query, vectorOf(row));
+                    if (exact >= minDot) {
+                        top.offer(row, exact, maxResults);
+                    }
+                }
+            }
+
+            EmbeddingMatch<TextSegment>[] matches = newMatchArray(top.size());
+            for (int i = matches.length - 1; i >= 0; i--) {
+                float score = top.topScore();
+                int row = top.pop();
+                matches[i] = new EmbeddingMatch<>(RelevanceScore.fromCosineSimilarity(score), idOf(row),
+                        embeddingOf(row), segmentOf(row));
+            }
+            return new EmbeddingSearchResult<>(Arrays.asList(matches));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Scores tiles {@code [startTile, endTile)} and returns a min-heap of the best
+     * {@code limit} rows below {@code rows}. Each tile is copied out of the mapping
+     * into a plain array that stays in cache while it is scored.
+     */
+    private NodeHeap scan(float[] query, int startTile, int endTile, int rows, int limit, float minDot, Filter filter,
+                          QueryCode queryCode) {
+        NodeHeap top = NodeHeap.min(limit + 1);
+        float[] scores = tileScores.get();
+
+        for (int t = startTile; t < endTile; t++) {
+            if (queryCode != null) {
+                scoreCodeTile(queryCode, t, scores);
+            } else {
+                scoreTile(query, t, scores);
+            }
+
+            int firstRow = t * TILE_ROWS;
+            int rowsInTile = Math.min(TILE_ROWS, rows - firstRow);
+            for (int i = 0; i < rowsInTile; i++) {
+                float score = scores[i];
+                if (score < minDot || (top.size() >= limit && score <= top.topScore())) {
+                    continue;
+                }
+                int candidate = firstRow + i;
+                if (deleted.get(candidate)) {
+                    continue;
+                }
+                if (filter != null) {
+                    TextSegment segment = segmentOf(candidate);
+                    if (segment == null || !filter.test(segment.metadata())) {
+                        continue;
+                    }
+                }
+                top.offer(candidate, score, limit);
+            }
+        }
+        return top;
+    }
+
+    private void scoreTile(float[] query, int t, float[] scores) {
+        int tileFloats = TILE_ROWS * dimension;
+        float[] tile = tileBuffer.get();
+        if (tile.length < tileFloats) {
+            tile = new float[tileFloats];
+            tileBuffer.set(tile);
+        }
+        vectorViews.get(t / tilesPerChunk).get((t % tilesPerChunk) * tileFloats, tile, 0, tileFloats);
+        VectorMath.dotTile(query, tile, TILE_ROWS, scores);
+    }
+
+    /**
+     * Approximate dot products of a tile's rows from their int8 codes. A code tile
+     * holds the rows' scales followed by their codes, dimension-major.
+     */
+    private void scoreCodeTile(QueryCode queryCode, int t, float[] scores) {
+        int codeBytes = TILE_ROWS * dimension;
+        byte[] codes = codeBuffer.get();
+        if (codes.length < codeBytes) {
+            codes = new byte[codeBytes];
+            codeBuffer.set(codes);
+        }
+        ByteBuffer chunk = codeTiles.chunk(t / tilesPerChunk);
+        int tileOffset = (t % tilesPerChunk) * codeTileBytes;
+        chunk.get(tileOffset + TILE_ROWS * Float.BYTES, codes, 0, codeBytes);
+        int[] dots = codeScores.get();
+        VectorMath.dotTile(queryCode.codes(), codes, TILE_ROWS, dots);
+        for (int i = 0; i < TILE_ROWS; i++) {
+            scores[i] = dots[i] * queryCode.scale() * chunk.getFloat(tileOffset + i * Float.BYTES);
+        }
+    }
+
+    /**
+     * The query quantized like the rows, so a code tile is scored in integers.
+     */
+    private record QueryCode(byte[] codes, float scale) {
+
+        static QueryCode of(float[] query) {
+            float scale = VectorMath.int8Scale(query);
+            return new QueryCode(VectorMath.quantize(query, scale), scale);
+        }
+    }
+
+    // --- writes ------------------------------------------------------------------------------
+
+    private void append(List<String> newIds, List<Embedding> embeddings, List<TextSegment> embedded) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < embeddings.size(); i++) {
+                appendRow(newIds.get(i), embeddings.get(i).vector(), embedded == null ? null : embedded.get(i));
+            }
+            // Publish the new rows only after their vectors and records are in place
+            segmentsHeader.putLong(8, segmentsEnd);
+            vectorsHeader.putInt(12, count);
+            if (codesHeader != null) {
+                codesHeader.putInt(12, count);
+            }
+            dirty = true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to extend " + vectorsFile + " or " + segmentsFile, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void appendRow(String id, float[] vector, TextSegment segment) throws IOException {
+        if (dimension == 0) {
+            initRows(vector.length);
+            vectorsHeader.putInt(8, dimension);
+            if (codesHeader != null) {
+                codesHeader.putInt(8, dimension);
+            }
+        } else if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected embedding of dimension " + dimension
+                    + " but got " + vector.length);
+        }
+
+        int row = count;
+        int tile = row / TILE_ROWS;
+        int chunk = tile / tilesPerChunk;
+        vectorTiles.ensureCapacity((long) (chunk + 1) * vectorTiles.chunkBytes());
+        syncViews();
+        FloatBuffer view = vectorViews.get(chunk);
+        int base = rowBase(row);
+        float[] normalized = VectorMath.normalize(vector);
+        for (int j = 0; j < dimension; j++) {
+            view.put(base + j * TILE_ROWS, normalized[j]);
+        }
+        if (codeTiles != null) {
+            encodeRow(row, normalized);
+        }
+
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] segmentBytes = SegmentCodec.encode(segment);
+        ByteBuffer record = ByteBuffer.allocate(1 + Integer.BYTES + idBytes.length + Integer.BYTES + segmentBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put(LIVE)
+                .putInt(idBytes.length).put(idBytes)
+                .putInt(segmentBytes.length).put(segmentBytes);
+        segmentRecords.ensureCapacity(segmentsEnd + record.capacity());
+        segmentRecords.put(segmentsEnd, record.array());
+
+        if (recordOffsets.length == row) {
+            recordOffsets = Arrays.copyOf(recordOffsets, Math.max(1024, row + (row >> 1)));
+        }
+        recordOffsets[row] = segmentsEnd;
+        segmentsEnd += record.capacity();
+        count++;
+    }
+
+    /**
+     * Stores the row as symmetric int8 codes: each component divided by the row's
+     * largest absolute component times 1/127, rounded.
+     */
+    private void encodeRow(int row, float[] normalized) throws IOException {
+        int tile = row / TILE_ROWS;
+        int chunkIndex = tile / tilesPerChunk;
+        codeTiles.ensureCapacity((long) (chunkIndex + 1) * codeTiles.chunkBytes());
+        float scale = VectorMath.int8Scale(normalized);
+        byte[] rowCodes = VectorMath.quantize(normalized, scale);
+        ByteBuffer chunk = codeTiles.chunk(chunkIndex);
+        int tileOffset = (tile % tilesPerChunk) * codeTileBytes;
+        chunk.putFloat(tileOffset + (row % TILE_ROWS) * Float.BYTES, scale);
+        int base = tileOffset + TILE_ROWS * Float.BYTES + row % TILE_ROWS;
+        for (int j = 0; j < dimension; j++) {
+            chunk.put(base + j * TILE_ROWS, rowCodes[j]);
+        }
+    }
+
+    private void markDeleted(Set<String> idsToRemove) {
+        for (int row = 0; row < count && !idsToRemove.isEmpty(); row++) {
+            if (!deleted.get(row) && idsToRemove.contains(idOf(row))) {
+                delete(row);
+            }
+        }
+    }
+
+    private void delete(int row) {
+        deleted.set(row);
+        segmentRecords.putByte(recordOffsets[row], DELETED);
+        dirty = true;
+    }
+
+    // --- reads -------------------------------------------------------------------------------
+
+    private String idOf(int row) {
+        long offset = recordOffsets[row] + 1;
+        byte[] id = new byte[segmentRecords.getInt(offset)];
+        segmentRecords.get(offset + Integer.BYTES, id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private TextSegment segmentOf(int row) {
+        long offset = recordOffsets[row] + 1;
+        offset += Integer.BYTES + segmentRecords.getInt(offset);
+        byte[] segment = new byte[segmentRecords.getInt(offset)];
+        segmentRecords.get(offset + Integer.BYTES, segment);
+        return SegmentCodec.decode(ByteBuffer.wrap(segment).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private Embedding embeddingOf(int row) {
+        return Embedding.from(vectorOf(row));
+    }
+
+    private float[] vectorOf(int row) {
+        float[] vector = new float[dimension];
+        FloatBuffer view = vectorViews.get(row / TILE_ROWS / tilesPerChunk);
+        int base = rowBase(row);
+        for (int j = 0; j < dimension; j++) {
+            vector[j] = view.get(base + j * TILE_ROWS);
+        }
+        return vector;
+    }
+
+    /**
+     * Index of the row's first component within its chunk's float view.
+     */
+    private int rowBase(int row) {
+        int tile = row / TILE_ROWS;
+        return (tile % tilesPerChunk) * TILE_ROWS * dimension + row % TILE_ROWS;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EmbeddingMatch<TextSegment>[] newMatchArray(int size) {
+        return (EmbeddingMatch<TextSegment>[]) new EmbeddingMatch<?>[size];
+    }
+
+    private static List<String> randomIds(int count) {
+        List<String> newIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            newIds.add(UUID.randomUUID().toString());
+        }
+        return newIds;
+    }
+
+    // --- files -------------------------------------------------------------------------------
+
+    @Override
+    public void persist() throws IOException {
+        lock.readLock().lock();
+        try {
+            if (!dirty) {
+                return;
+            }
+            // Mapped writes are already visible to the OS; this only flushes them to disk
+            if (vectorTiles != null) {
+                vectorTiles.force();
+            }
+            if (codeTiles != null) {
+                codeTiles.force();
+                codesHeader.force();
+            }
+            segmentRecords.force();
+            segmentsHeader.force();
+            vectorsHeader.force();
+            dirty = false;
+            log.debug("Flushed {} vectors to {}", count, vectorsFile);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        if (vectorsHeader.getInt(0) != VECTORS_MAGIC || vectorsHeader.getInt(4) != FORMAT_VERSION
+                || segmentsHeader.getInt(0) != SEGMENTS_MAGIC || segmentsHeader.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported flat vector store format: " + vectorsFile);
+        }
+        int storedDimension = vectorsHeader.getInt(8);
+        int storedCount = vectorsHeader.getInt(12);
+        long storedEnd = segmentsHeader.getLong(8);
+        if (storedCount == 0) {
+            return;
+        }
+
+        initRows(storedDimension);
+        int tiles = (storedCount + TILE_ROWS - 1) / TILE_ROWS;
+        int chunks = (tiles + tilesPerChunk - 1) / tilesPerChunk;
+        vectorTiles.ensureCapacity((long) chunks * vectorTiles.chunkBytes());
+        syncViews();
+        segmentRecords.ensureCapacity(storedEnd);
+
+        recordOffsets = new long[Math.max(1024, storedCount)];
+        long offset = 0;
+        for (int row = 0; row < storedCount; row++) {
+            recordOffsets[row] = offset;
+            if (segmentRecords.getByte(offset) == DELETED) {
+                deleted.set(row);
+            }
+            long segmentLengthOffset = offset + 1 + Integer.BYTES + segmentRecords.getInt(offset + 1);
+            offset = segmentLengthOffset + Integer.BYTES + segmentRecords.getInt(segmentLengthOffset);
+        }
+        count = storedCount;
+        segmentsEnd = offset;
+        log.info("Opened flat vector store with {} vectors ({} deleted) from {}",
+                count, deleted.cardinality(), vectorsFile);
+    }
+
+    private void initRows(int newDimension) {
+        dimension = newDimension;
+        int tileBytes = TILE_ROWS * dimension * Float.BYTES;
+        tilesPerChunk = Math.max(1, TARGET_CHUNK_BYTES / tileBytes);
+        vectorTiles = new MappedChunks(vectorsChannel, HEADER_BYTES, tilesPerChunk * tileBytes);
+        vectorViews.clear();
+        if (codesChannel != null) {
+            // Same tiles per chunk as the vectors, so both are addressed alike
+            codeTileBytes = TILE_ROWS * (Float.BYTES + dimension);
+            codeTiles = new MappedChunks(codesChannel, HEADER_BYTES, tilesPerChunk * codeTileBytes);
+        }
+    }
+
+    /**
+     * Brings the codes file up to date with the vectors: codes of another
+     * dimension or of more rows than exist are discarded, missing rows are encoded.
+     */
+    private void syncCodes() throws IOException {
+        int coded = codesHeader.getInt(0) == CODES_MAGIC && codesHeader.getInt(4) == FORMAT_VERSION
+                && codesHeader.getInt(8) == dimension ? codesHeader.getInt(12) : 0;
+        if (coded > count) {
+            coded = 0;
+        }
+        if (codeTiles != null) {
+            // Existing codes are mapped like the vectors, chunk for chunk
+            codeTiles.ensureCapacity((long) vectorTiles.chunkCount() * codeTiles.chunkBytes());
+            for (int row = coded; row < count; row++) {
+                encodeRow(row, vectorOf(row));
+            }
+        }
+        codesHeader.putInt(0, CODES_MAGIC).putInt(4, FORMAT_VERSION).putInt(8, dimension).putInt(12, count);
+        if (coded < count) {
+            log.info("Quantized {} vectors into {}", count - coded, codesFile);
+            dirty = true;
+        }
+    }
+
+    private void syncViews() {
+        while (vectorViews.size() < vectorTiles.chunkCount()) {
+            vectorViews.add(vectorTiles.chunk(vectorViews.size()).asFloatBuffer());
+        }
+    }
+
+    private void writeHeaders() {
+        vectorsHeader.putInt(0, VECTORS_MAGIC).putInt(4, FORMAT_VERSION).putInt(8, dimension).putInt(12, count);
+        if (codesHeader != null) {
+            codesHeader.putInt(0, CODES_MAGIC).putInt(4, FORMAT_VERSION).putInt(8, dimension).putInt(12, count);
+        }
+        segmentsHeader.putInt(0, SEGMENTS_MAGIC).putInt(4, FORMAT_VERSION).putLong(8, segmentsEnd);
+        dirty = true;
+    }
+
+    private static MappedByteBuffer mapHeader(FileChannel channel) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        return header;
+    }
+}
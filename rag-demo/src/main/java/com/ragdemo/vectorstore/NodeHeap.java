@@ -0,0 +1,134 @@
+package com.ragdemo.vectorstore;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of (score, node) pairs kept in parallel primitive arrays.
+ * A min-heap keeps the lowest score on top, which makes it a bounded top-k
+ * collector; a max-heap serves as the candidate queue during graph search.
+ */
+final class NodeHeap {
+
+    private final boolean minHeap;
+    private float[] scores;
+    private int[] nodes;
+    private int size;
+
+    NodeHeap(int initialCapacity, boolean minHeap) {
+        this.minHeap = minHeap;
+        this.scores = new float[Math.max(initialCapacity, 4)];
+        this.nodes = new int[scores.length];
+    }
+
+    static NodeHeap min(int initialCapacity) {
+        return new NodeHeap(initialCapacity, true);
+    }
+
+    static NodeHeap max(int initialCapacity) {
+        return new NodeHeap(initialCapacity, false);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    float topScore() {
+        return scores[0];
+    }
+
+    int topNode() {
+        return nodes[0];
+    }
+
+    void push(int node, float score) {
+        if (size == scores.length) {
+            scores = Arrays.copyOf(scores, size * 2);
+            nodes = Arrays.copyOf(nodes, size * 2);
+        }
+        int i = size++;
+        scores[i] = score;
+        nodes[i] = node;
+        siftUp(i);
+    }
+
+    /**
+     * Adds the pair while keeping at most {@code limit} entries, evicting the
+     * lowest score. Only meaningful on a min-heap.
+     */
+    boolean offer(int node, float score, int limit) {
+        if (size < limit) {
+            push(node, score);
+            return true;
+        }
+        if (score <= scores[0]) {
+            return false;
+        }
+        scores[0] = score;
+        nodes[0] = node;
+        siftDown(0);
+        return true;
+    }
+
+    int pop() {
+        int node = nodes[0];
+        size--;
+        if (size > 0) {
+            scores[0] = scores[size];
+            nodes[0] = nodes[size];
+            siftDown(0);
+        }
+        return node;
+    }
+
+    int nodeAt(int index) {
+        return nodes[index];
+    }
+
+    float scoreAt(int index) {
+        return scores[index];
+    }
+
+    private boolean before(int a, int b) {
+        return minHeap ? scores[a] < scores[b] : scores[a] > scores[b];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            int right = left + 1;
+            int child = right < size && before(right, left) ? right : left;
+            if (!before(child, i)) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+        int node = nodes[a];
+        nodes[a] = nodes[b];
+        nodes[b] = node;
+    }
+}
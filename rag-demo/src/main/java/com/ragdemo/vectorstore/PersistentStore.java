@@ -0,0 +1,12 @@
+package com.ragdemo.vectorstore;
+
+import java.io.IOException;
+
+/**
+ * A local embedding store that keeps its data in files and can be asked to
+ * bring them up to date, e.g. on a schedule and at shutdown.
+ */
+public interface PersistentStore {
+
+    void persist() throws IOException;
+}
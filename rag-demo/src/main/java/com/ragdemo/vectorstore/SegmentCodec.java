@@ -0,0 +1,105 @@
+package com.ragdemo.vectorstore;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary encoding of a {@link TextSegment} (text plus typed metadata) used by
+ * the local stores' files. A {@code null} segment is encoded as length -1.
+ */
+final class SegmentCodec {
+
+    private static final byte STRING = 'S';
+    private static final byte UUID_VALUE = 'U';
+    private static final byte INTEGER = 'I';
+    private static final byte LONG = 'L';
+    private static final byte FLOAT = 'F';
+    private static final byte DOUBLE = 'D';
+
+    private SegmentCodec() {
+    }
+
+    static byte[] encode(TextSegment segment) {
+        if (segment == null) {
+            return ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(-1).array();
+        }
+        byte[] text = segment.text().getBytes(StandardCharsets.UTF_8);
+        Map<String, Object> metadata = segment.metadata().toMap();
+
+        byte[][] keys = new byte[metadata.size()][];
+        byte[] types = new byte[metadata.size()];
+        byte[][] values = new byte[metadata.size()][];
+        int size = Integer.BYTES + text.length + Integer.BYTES;
+        int i = 0;
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            keys[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            types[i] = typeOf(entry.getValue());
+            values[i] = String.valueOf(entry.getValue()).getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + keys[i].length + 1 + Integer.BYTES + values[i].length;
+            i++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(text.length).put(text).putInt(keys.length);
+        for (i = 0; i < keys.length; i++) {
+            buffer.putInt(keys[i].length).put(keys[i]).put(types[i]).putInt(values[i].length).put(values[i]);
+        }
+        return buffer.array();
+    }
+
+    static TextSegment decode(ByteBuffer buffer) {
+        int textLength = buffer.getInt();
+        if (textLength < 0) {
+            return null;
+        }
+        String text = readString(buffer, textLength);
+        int entries = buffer.getInt();
+        Map<String, Object> metadata = new HashMap<>(entries * 2);
+        for (int i = 0; i < entries; i++) {
+            String key = readString(buffer, buffer.getInt());
+            byte type = buffer.get();
+            String value = readString(buffer, buffer.getInt());
+            metadata.put(key, parse(type, value));
+        }
+        return TextSegment.from(text, Metadata.from(metadata));
+    }
+
+    private static byte typeOf(Object value) {
+        if (value instanceof UUID) {
+            return UUID_VALUE;
+        } else if (value instanceof Integer) {
+            return INTEGER;
+        } else if (value instanceof Long) {
+            return LONG;
+        } else if (value instanceof Float) {
+            return FLOAT;
+        } else if (value instanceof Double) {
+            return DOUBLE;
+        }
+        return STRING;
+    }
+
+    private static Object parse(byte type, String value) {
+        return switch (type) {
+            case UUID_VALUE -> UUID.fromString(value);
+            case INTEGER -> Integer.parseInt(value);
+            case LONG -> Long.parseLong(value);
+            case FLOAT -> Float.parseFloat(value);
+            case DOUBLE -> Double.parseDouble(value);
+            default -> value;
+        };
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
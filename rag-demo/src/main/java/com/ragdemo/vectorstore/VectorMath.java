@@ -0,0 +1,147 @@
+package com.ragdemo.vectorstore;
+
+import java.util.Arrays;
+
+/**
+ * Small vector helpers shared by the local stores and caches. All similarity
+ * is computed as a dot product over unit-length vectors.
+ */
+public final class VectorMath {
+
+    private VectorMath() {
+    }
+
+    /**
+     * Returns a unit-length copy of {@code vector} (all zeros stays all zeros).
+     */
+    public static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        float[] result = new float[vector.length];
+        if (norm == 0) {
+            return result;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = (float) (vector[i] / norm);
+        }
+        return result;
+    }
+
+    public static float dot(float[] a, float[] b) {
+        return dot(a, 0, b, 0, a.length);
+    }
+
+    /**
+     * Dot product of {@code length} floats starting at the given offsets. The four
+     * independent accumulators let the JIT keep the loop in vector registers.
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        int upper = length & ~3;
+        for (; i < upper; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Scores {@code tileRows} vectors stored dimension-major (all first components,
+     * then all second components, ...) against {@code query}, writing one dot
+     * product per row into {@code scores}. Unlike a per-row dot product, the inner
+     * loop is an element-wise multiply-add across rows with no reduction, which
+     * C2 compiles to SIMD instructions.
+     */
+    public static void dotTile(float[] query, float[] tile, int tileRows, float[] scores) {
+        Arrays.fill(scores, 0, tileRows, 0f);
+        int dimension = query.length;
+        int j = 0;
+        for (; j + 3 < dimension; j += 4) {
+            float q0 = query[j];
+            float q1 = query[j + 1];
+            float q2 = query[j + 2];
+            float q3 = query[j + 3];
+            int b0 = j * tileRows;
+            int b1 = b0 + tileRows;
+            int b2 = b1 + tileRows;
+            int b3 = b2 + tileRows;
+            for (int i = 0; i < tileRows; i++) {
+                scores[i] += q0 * tile[b0 + i] + q1 * tile[b1 + i] + q2 * tile[b2 + i] + q3 * tile[b3 + i];
+            }
+        }
+        for (; j < dimension; j++) {
+            float q = query[j];
+            int base = j * tileRows;
+            for (int i = 0; i < tileRows; i++) {
+                scores[i] += q * tile[base + i];
+            }
+        }
+    }
+
+    /**
+     * Scale that maps the largest component of {@code vector} to 127, or 0 for an
+     * all-zero vector.
+     */
+    public static float int8Scale(float[] vector) {
+        float max = 0;
+        for (float v : vector) {
+            max = Math.max(max, Math.abs(v));
+        }
+        return max / 127f;
+    }
+
+    /**
+     * Symmetric int8 code of each component: {@code round(v / scale)}.
+     */
+    public static byte[] quantize(float[] vector, float scale) {
+        byte[] codes = new byte[vector.length];
+        if (scale == 0) {
+            return codes;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            codes[i] = (byte) Math.round(vector[i] / scale);
+        }
+        return codes;
+    }
+
+    /**
+     * {@link #dotTile(float[], float[], int, float[])} with both the query and the
+     * tile as int8 codes. Products are summed in ints, which is exact and, with a
+     * quarter of the bytes per row, keeps the loop as cheap as the float one;
+     * multiplying by the two scales gives the approximate dot product.
+     */
+    public static void dotTile(byte[] query, byte[] tile, int tileRows, int[] scores) {
+        Arrays.fill(scores, 0, tileRows, 0);
+        int dimension = query.length;
+        int j = 0;
+        for (; j + 3 < dimension; j += 4) {
+            int q0 = query[j];
+            int q1 = query[j + 1];
+            int q2 = query[j + 2];
+            int q3 = query[j + 3];
+            int b0 = j * tileRows;
+            int b1 = b0 + tileRows;
+            int b2 = b1 + tileRows;
+            int b3 = b2 + tileRows;
+            for (int i = 0; i < tileRows; i++) {
+                scores[i] += q0 * tile[b0 + i] + q1 * tile[b1 + i] + q2 * tile[b2 + i] + q3 * tile[b3 + i];
+            }
+        }
+        for (; j < dimension; j++) {
+            int q = query[j];
+            int base = j * tileRows;
+            for (int i = 0; i < tileRows; i++) {
+                scores[i] += q * tile[base + i];
+            }
+        }
+    }
+}
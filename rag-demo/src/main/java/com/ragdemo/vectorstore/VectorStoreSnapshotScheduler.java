@@ -0,0 +1,32 @@
+package com.ragdemo.vectorstore;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Periodically brings the files of local embedding stores up to date so a crash
+ * loses at most one interval of ingested vectors.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class VectorStoreSnapshotScheduler {
+
+    private final List<PersistentStore> stores;
+
+    @Scheduled(fixedDelayString = "${vector-store.snapshot-interval-ms:30000}")
+    public void persistStores() {
+        for (PersistentStore store : stores) {
+            try {
+                store.persist();
+            } catch (IOException e) {
+                log.error("Failed to persist embedding store", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.ragdemo.vectorstore;
+
+import com.ragdemo.vectorstore.MappedFlatEmbeddingStore.Quantization;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Measures recall@5 and query latency of the flat store with int8 codes against
+ * the exact float store, on clustered synthetic vectors shaped like text
+ * embeddings. It is not a test and only lives with them to stay out of the
+ * application jar. Run with
+ * {@code mvn -q test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.ragdemo.vectorstore.FlatStoreBenchmark -Dexec.args="[vectors] [dimension] [queries]"};
+ * the defaults are 20000 vectors of dimension 768 and 200 queries.
+ */
+public final class FlatStoreBenchmark {
+
+    private static final int K = 5;
+    private static final int[] RESCORE_FACTORS = {1, 2, 4, 8};
+
+    private FlatStoreBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int vectors = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int dimension = args.length > 1 ? Integer.parseInt(args[1]) : 768;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Random random = new Random(42);
+        float[][] centroids = new float[Math.max(1, vectors / 50)][];
+        for (int c = 0; c < centroids.length; c++) {
+            centroids[c] = gaussian(random, dimension, 1f);
+        }
+        List<Embedding> embeddings = new ArrayList<>(vectors);
+        List<TextSegment> segments = new ArrayList<>(vectors);
+        for (int i = 0; i < vectors; i++) {
+            embeddings.add(Embedding.from(around(random, centroids[random.nextInt(centroids.length)], 0.6f)));
+            segments.add(TextSegment.from("row-" + i));
+        }
+        List<Embedding> queryEmbeddings = new ArrayList<>(queries);
+        for (int q = 0; q < queries; q++) {
+            queryEmbeddings.add(Embedding.from(around(random, embeddings.get(random.nextInt(vectors)).vector(), 0.3f)));
+        }
+
+        Path directory = Files.createTempDirectory("flat-store-benchmark");
+        try {
+            MappedFlatEmbeddingStore exact = new MappedFlatEmbeddingStore(directory, "exact");
+            MappedFlatEmbeddingStore quantized = new MappedFlatEmbeddingStore(directory, "int8", Quantization.INT8, 1);
+            for (int from = 0; from < vectors; from += 1000) {
+                int to = Math.min(vectors, from + 1000);
+                exact.addAll(embeddings.subList(from, to), segments.subList(from, to));
+                quantized.addAll(embeddings.subList(from, to), segments.subList(from, to));
+            }
+
+            System.out.printf("%d vectors of dimension %d, %d queries, recall@%d against the exact float store%n",
+                    vectors, dimension, queries, K);
+            System.out.printf("Scanned bytes per vector: float32 %d, int8 %d (%.1fx smaller)%n%n",
+                    dimension * Float.BYTES, dimension + Float.BYTES,
+                    (double) dimension * Float.BYTES / (dimension + Float.BYTES));
+            System.out.printf("%-18s %10s %10s %10s%n", "store", "recall@" + K, "p50 ms", "p99 ms");
+
+            List<Set<String>> truth = new ArrayList<>(queries);
+            double[] exactMillis = run(exact, queryEmbeddings, truth, null);
+            print("float32", 1.0, exactMillis);
+            for (int factor : RESCORE_FACTORS) {
+                // Reopening reads the codes written above
+                MappedFlatEmbeddingStore store = new MappedFlatEmbeddingStore(directory, "int8", Quantization.INT8,
+                        factor);
+                double[] recall = new double[1];
+                double[] millis = run(store, queryEmbeddings, truth, recall);
+                print("int8, rescore x" + factor, recall[0], millis);
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Runs every query twice, timing the second round. Without {@code recall} the
+     * results are recorded as ground truth, otherwise their mean recall against it
+     * is stored there.
+     */
+    private static double[] run(MappedFlatEmbeddingStore store, List<Embedding> queries, List<Set<String>> truth,
+                                 double[] recall) {
+        double[] millis = new double[queries.size()];
+        double hits = 0;
+        for (int round = 0; round < 2; round++) {
+            for (int q = 0; q < queries.size(); q++) {
+                long start = System.nanoTime();
+                List<EmbeddingMatch<TextSegment>> matches = store.search(EmbeddingSearchRequest.builder()
+                        .queryEmbedding(queries.get(q))
+                        .maxResults(K)
+                        .build()).matches();
+                millis[q] = (System.nanoTime() - start) / 1_000_000.0;
+                Set<String> found = new HashSet<>();
+                matches.forEach(match -> found.add(match.embedded().text()));
+                if (round == 0) {
+                    continue;
+                }
+                if (recall == null) {
+                    truth.add(found);
+                } else {
+                    found.retainAll(truth.get(q));
+                    hits += (double) found.size() / K;
+                }
+            }
+        }
+        if (recall != null) {
+            recall[0] = hits / queries.size();
+        }
+        Arrays.sort(millis);
+        return millis;
+    }
+
+    private static void print(String store, double recall, double[] sortedMillis) {
+        System.out.printf("%-18s %10.3f %10.2f %10.2f%n", store, recall,
+                sortedMillis[sortedMillis.length / 2], sortedMillis[(int) (sortedMillis.length * 0.99)]);
+    }
+
+    private static float[] gaussian(Random random, int dimension, float sigma) {
+        float[] vector = new float[dimension];
+        for (int j = 0; j < dimension; j++) {
+            vector[j] = (float) random.nextGaussian() * sigma;
+        }
+        return vector;
+    }
+
+    private static float[] around(Random random, float[] center, float sigma) {
+        float[] unit = VectorMath.normalize(center);
+        float[] noise = gaussian(random, unit.length, sigma / (float) Math.sqrt(unit.length));
+        for (int j = 0; j < unit.length; j++) {
+            noise[j] += unit[j];
+        }
+        return noise;
+    }
+}